@@ -4,6 +4,9 @@ import org.immutables.value.Value;
 import tech.nathann.riot4j.enums.regions.RiotRegion;
 import tech.nathann.riot4j.enums.regions.ValRegion;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Defines config for a {@link RiotAPIClient}
  */
@@ -11,6 +14,19 @@ import tech.nathann.riot4j.enums.regions.ValRegion;
 public abstract class ClientConfig {
     public abstract String token();
 
+    /**
+     * Extra keys of the same type as {@link #token()}. Each key gets its own rate limiter and requests are spread
+     * across all of them
+     */
+    public abstract List<String> additionalTokens();
+
+    public List<String> tokens() {
+        List<String> tokens = new ArrayList<>();
+        tokens.add(token());
+        tokens.addAll(additionalTokens());
+        return tokens;
+    }
+
     @Value.Default
     public RiotRegion riotRegion() {
         return RiotRegion.AMERICAS;
@@ -21,5 +37,13 @@ public abstract class ClientConfig {
         return ValRegion.NORTH_AMERICA;
     }
 
+    /**
+     * Reads the rounds of matches only when they're asked for, see {@link tech.nathann.riot4j.json.valMatch.LazyMatchData}
+     */
+    @Value.Default
+    public boolean lazyRounds() {
+        return false;
+    }
+
     //todo should have a default locale
 }
@@ -0,0 +1,94 @@
+package tech.nathann.riot4j.clients;
+
+import reactor.core.publisher.Mono;
+import tech.nathann.riot4j.queues.Deadline;
+import tech.nathann.riot4j.queues.Priority;
+import tech.nathann.riot4j.queues.Tenant;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Shares in flight calls between everyone asking for the same thing at the same time. Subscribers that show up while a
+ * call with their key is running get its result instead of making (and paying a rate limit ticket for) their own.
+ * The shared call is cancelled once every subscriber has cancelled
+ */
+public class RequestCoalescer {
+    private final Map<String, Mono<?>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong saved = new AtomicLong();
+
+    /**
+     * Only subscribers with the same {@link Priority} and {@link Tenant} share a call, since the call waits in the lane
+     * of whoever started it. Subscribers with a {@link Deadline} always make their own call, another subscriber's
+     * call could be queued past it
+     * @param key identifies the call, anything with the same key must give the same result
+     * @param call makes the call if nothing with this key is in flight
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Mono<T> coalesce(String key, Supplier<Mono<T>> call) {
+        return Mono.deferContextual(context -> {
+            if(context.hasKey(Deadline.class)) {
+                calls.incrementAndGet();
+                return call.get();
+            }
+            Tenant tenant = context.getOrDefault(Tenant.class, Tenant.DEFAULT);
+            String lane = key + "/" + context.getOrDefault(Priority.class, Priority.NORMAL) + "/" + tenant.getName() + "/" + tenant.getWeight();
+
+            Mono<?> existing = inFlight.get(lane);
+            if(existing != null) {
+                saved.incrementAndGet();
+                return (Mono<T>) existing;
+            }
+
+            AtomicReference<Mono<T>> self = new AtomicReference<>();
+            //the entry is gone before anyone sees the result, and a subscriber that still got hold of it after that
+            //reconnects to the recorded result instead of sending the call again
+            AtomicReference<Mono<T>> result = new AtomicReference<>();
+            Mono<T> source = call.get()
+                    .doOnSuccess(value -> {
+                        result.set(value == null ? Mono.empty() : Mono.just(value));
+                        inFlight.remove(lane, self.get());
+                    })
+                    .doOnError(error -> {
+                        result.set(Mono.error(error));
+                        inFlight.remove(lane, self.get());
+                    })
+                    .doOnCancel(() -> inFlight.remove(lane, self.get()));
+            Mono<T> shared = Mono.defer(() -> {
+                        Mono<T> done = result.get();
+                        return done != null ? done : source;
+                    })
+                    .flux()
+                    .replay(1) //a subscriber that joins between the value and completion still gets the value
+                    .refCount()
+                    .singleOrEmpty();
+            self.set(shared);
+
+            Mono<?> raced = inFlight.putIfAbsent(lane, shared);
+            if(raced != null) {
+                saved.incrementAndGet();
+                return (Mono<T>) raced;
+            }
+            calls.incrementAndGet();
+            return shared;
+        });
+    }
+
+    /**
+     * @return how many calls were actually made
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return how many subscribers joined a call already in flight, each one is a rate limit ticket saved
+     */
+    public long getSaved() {
+        return saved.get();
+    }
+}
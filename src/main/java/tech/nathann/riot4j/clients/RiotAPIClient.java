@@ -2,54 +2,124 @@ package tech.nathann.riot4j.clients;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
 import reactor.core.publisher.Mono;
 import reactor.netty.http.client.HttpClient;
 import tech.nathann.riot4j.enums.RiotGame;
 import tech.nathann.riot4j.enums.ValLocale;
 import tech.nathann.riot4j.enums.ValRecentQueue;
+import tech.nathann.riot4j.enums.regions.Region;
 import tech.nathann.riot4j.enums.regions.RiotRegion;
 import tech.nathann.riot4j.enums.regions.ValRegion;
+import io.netty.buffer.ByteBuf;
 import tech.nathann.riot4j.json.Mapping;
 import tech.nathann.riot4j.json.riotAccount.ActiveShardData;
 import tech.nathann.riot4j.json.riotAccount.RiotAccountData;
 import tech.nathann.riot4j.json.valContent.ContentData;
 import tech.nathann.riot4j.json.valLeaderboard.LeaderboardData;
+import tech.nathann.riot4j.json.valMatch.LazyMatchData;
 import tech.nathann.riot4j.json.valMatch.MatchData;
+import tech.nathann.riot4j.json.valMatch.MatchParser;
+import tech.nathann.riot4j.json.valMatch.MatchVisitor;
 import tech.nathann.riot4j.json.valMatch.MatchlistData;
 import tech.nathann.riot4j.json.valMatch.RecentMatchesData;
 import tech.nathann.riot4j.json.valPlatform.PlatformStatusData;
 import tech.nathann.riot4j.objects.ValActId;
+import tech.nathann.riot4j.queues.Capacity;
 import tech.nathann.riot4j.queues.RateLimits;
-import tech.nathann.riot4j.queues.Ratelimiter;
+import tech.nathann.riot4j.queues.TokenPool;
 
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Optional;
+import java.util.function.Function;
 
 /**
  * Defines one-to-one object mappings of all endpoints
  */
-public abstract class RiotAPIClient extends RawAPIInterface {
+public abstract class RiotAPIClient extends RawAPIInterface implements Disposable {
     private static final Logger log = LoggerFactory.getLogger(RiotAPIClient.class);
 
-    protected final String token;
     protected final RiotRegion riotRegion;
     protected final ValRegion valRegion;
+    protected final boolean lazyRounds;
 
-    protected final Ratelimiter limiter;
+    protected final TokenPool keys;
+    protected final RequestCoalescer coalescer = new RequestCoalescer();
+    private volatile boolean disposed = false;
 
-    protected RiotAPIClient(ClientConfig config, Ratelimiter limiter) {
+    protected RiotAPIClient(ClientConfig config, TokenPool keys) {
         super(
                 HttpClient
                         .create()
                         .responseTimeout(Duration.ofSeconds(5))
         );
 
-        this.token = config.token();
         this.riotRegion = config.riotRegion();
         this.valRegion = config.valRegion();
+        this.lazyRounds = config.lazyRounds();
 
-        this.limiter = limiter;
+        this.keys = keys;
+    }
+
+    /**
+     * Sends a request through the coalescer and then the key pool, so identical requests in flight at the same time
+     * share one http call and one parsed result
+     * @param path the endpoint specific part of the uri, together with limit and region it identifies the request
+     */
+    private <T> Mono<T> request(RateLimits limit, Region region, String path, Function<String, HttpClient.ResponseReceiver<?>> raw, Class<T> type) {
+        return request(limit, region, path, raw, Mapping.decode(type)); //parsed from netty's buffer, never a String
+    }
+
+    private <T> Mono<T> request(RateLimits limit, Region region, String path, Function<String, HttpClient.ResponseReceiver<?>> raw, Function<ByteBuf, T> decoder) {
+        return coalescer.coalesce(limit + "/" + region + "/" + path, () ->
+                keys.push(limit, region, raw, decoder)
+        );
+    }
+
+    /**
+     * Makes the same call once with every key, so a bad key fails {@link #test()} instead of whichever later call
+     * happens to pick it
+     */
+    protected <T> Mono<Void> testEveryKey(RateLimits limit, Region region, Function<String, HttpClient.ResponseReceiver<?>> raw, Class<T> type) {
+        return keys.pushEach(limit, region, raw, Mapping.decode(type)).then();
+    }
+
+    /**
+     * @return counters for how many calls were shared instead of made
+     */
+    public RequestCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * @return what's left of a limit in a region over every key of the client, for planning how much work to start
+     */
+    public Optional<Capacity> getCapacity(RateLimits limit, Region region) {
+        return keys.getCapacity(limit, region);
+    }
+
+    /**
+     * @return roughly how long until the last of a number of requests of a limit pushed now gets to go out
+     */
+    public Optional<Duration> estimate(RateLimits limit, Region region, int requests) {
+        return keys.estimate(limit, region, requests);
+    }
+
+    /**
+     * Lets go of the client's rate limit state, saving it first if it's persisted. Call it once the client is no
+     * longer used
+     */
+    @Override
+    public void dispose() {
+        disposed = true;
+        keys.dispose();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
     }
 
     /**
@@ -60,33 +130,27 @@ public abstract class RiotAPIClient extends RawAPIInterface {
         String nameSanitized = URLEncoder.encode(name, StandardCharsets.UTF_8);
         String taglineSanitized = URLEncoder.encode(tagline, StandardCharsets.UTF_8);
 
-        return limiter.push(RateLimits.ACCOUNT_BY_RIOT_ID, region, getAccountByNameRaw(token, region.toString(), nameSanitized, taglineSanitized))
-                .map(Mapping.map(RiotAccountData.class));
+        return request(RateLimits.ACCOUNT_BY_RIOT_ID, region, nameSanitized + "/" + taglineSanitized, token -> getAccountByNameRaw(token, region.toString(), nameSanitized, taglineSanitized), RiotAccountData.class);
     }
 
     protected Mono<RiotAccountData> getRiotAccountData(RiotRegion region, String puuid) {
-        return limiter.push(RateLimits.ACCOUNT_BY_PUUID, region, getAccountByPuuidRaw(token, region.toString(), puuid))
-                .map(Mapping.map(RiotAccountData.class));
+        return request(RateLimits.ACCOUNT_BY_PUUID, region, puuid, token -> getAccountByPuuidRaw(token, region.toString(), puuid), RiotAccountData.class);
     }
 
     protected Mono<ActiveShardData> getActiveShardData(RiotRegion region, RiotGame game, String puuid) {
-        return limiter.push(RateLimits.ACTIVE_SHARDS, region, getActiveShardsByGameRaw(token, region.toString(), game.toString(), puuid))
-                .map(Mapping.map(ActiveShardData.class));
+        return request(RateLimits.ACTIVE_SHARDS, region, game + "/" + puuid, token -> getActiveShardsByGameRaw(token, region.toString(), game.toString(), puuid), ActiveShardData.class);
     }
 
     protected Mono<LeaderboardData> getLeaderboardData(ValRegion region, ValActId act, Long start, Long size) {
-        return limiter.push(RateLimits.VAL_RANKED, region, getValLeaderboardRaw(token, region.toString(), act.toString(), size.toString(), start.toString()))
-                .map(Mapping.map(LeaderboardData.class));
+        return request(RateLimits.VAL_RANKED, region, act + "/" + start + "/" + size, token -> getValLeaderboardRaw(token, region.toString(), act.toString(), size.toString(), start.toString()), LeaderboardData.class);
     }
 
     protected Mono<PlatformStatusData> getPlatformStatusData(ValRegion region) {
-        return limiter.push(RateLimits.VAL_STATUS, region, getValStatusRaw(token, region.toString()))
-                .map(Mapping.map(PlatformStatusData.class));
+        return request(RateLimits.VAL_STATUS, region, "", token -> getValStatusRaw(token, region.toString()), PlatformStatusData.class);
     }
 
     protected Mono<ContentData> getContentData(ValRegion region, ValLocale locale) {
-        return limiter.push(RateLimits.VAL_CONTENT, region, getValContentRaw(token, region.toString(), locale.toString()))
-                .map(Mapping.map(ContentData.class));
+        return request(RateLimits.VAL_CONTENT, region, locale.toString(), token -> getValContentRaw(token, region.toString(), locale.toString()), ContentData.class);
     }
 
     /**
@@ -94,18 +158,23 @@ public abstract class RiotAPIClient extends RawAPIInterface {
      */
 
     protected Mono<RecentMatchesData> getRecentMatchesData(ValRegion region, ValRecentQueue queue) {
-        return limiter.push(RateLimits.VAL_RECENT_MATCHES, region, getRecentMatchesRaw(token, region.toString(), queue.toString()))
-                .map(Mapping.map(RecentMatchesData.class));
+        return request(RateLimits.VAL_RECENT_MATCHES, region, queue.toString(), token -> getRecentMatchesRaw(token, region.toString(), queue.toString()), RecentMatchesData.class);
     }
 
     protected Mono<MatchData> getMatchData(ValRegion region, String id) {
-        return limiter.push(RateLimits.VAL_MATCH, region, getMatchRaw(token, region.toString(), id))
-                .map(Mapping.map(MatchData.class));
+        Function<ByteBuf, MatchData> decoder = lazyRounds ? LazyMatchData.decoder() : Mapping.decode(MatchData.class);
+        return request(RateLimits.VAL_MATCH, region, id, token -> getMatchRaw(token, region.toString(), id), decoder);
+    }
+
+    /**
+     * Not coalesced, every visitor has to see the match for itself
+     */
+    protected <V extends MatchVisitor> Mono<V> visitMatchData(ValRegion region, String id, V visitor) {
+        return keys.push(RateLimits.VAL_MATCH, region, token -> getMatchRaw(token, region.toString(), id), MatchParser.decoder(visitor));
     }
 
     protected Mono<MatchlistData> getMatchListData(ValRegion region, String puuid) {
-        return limiter.push(RateLimits.VAL_MATCHLIST, region, getMatchListRaw(token, region.toString(), puuid))
-                .map(Mapping.map(MatchlistData.class));
+        return request(RateLimits.VAL_MATCHLIST, region, puuid, token -> getMatchListRaw(token, region.toString(), puuid), MatchlistData.class);
     }
 
     //todo still missing some methods that are only in riotdev/prod clients
@@ -4,8 +4,13 @@ import reactor.core.publisher.Mono;
 import tech.nathann.riot4j.enums.regions.RiotRegion;
 import tech.nathann.riot4j.enums.regions.ValRegion;
 import tech.nathann.riot4j.exceptions.InvalidTokenException;
+import tech.nathann.riot4j.queues.RetryBudget;
+import tech.nathann.riot4j.queues.TokenPool;
+import tech.nathann.riot4j.queues.nlimiter.ProactiveRatelimiter;
 import tech.nathann.riot4j.queues.nlimiter.RatePresets;
 
+import java.nio.file.Path;
+
 /**
  * Used to build either a {@link RiotDevelopmentAPIClient} or a {@link RiotProductionAPIClient}
  */
@@ -18,12 +23,55 @@ public class RiotClientBuilder {
     }
 
     protected final ImmutableClientConfig.Builder builder = ImmutableClientConfig.builder();
+    protected Path sharedLimits = null;
+    protected Path persistedLimits = null;
+    protected RetryBudget retryBudget = null;
 
     public RiotClientBuilder token(String token) {
         builder.token(token);
         return this;
     }
 
+    /**
+     * Adds more keys for the client to spread requests over. Every key is rate limited on its own, so n keys give
+     * roughly n times the throughput of one
+     * @param tokens keys of the same type as {@link #token(String)}
+     */
+    public RiotClientBuilder additionalTokens(String... tokens) {
+        builder.addAdditionalTokens(tokens);
+        return this;
+    }
+
+    /**
+     * Keeps rate limit state in memory mapped files in a directory, so every process on this machine that builds its
+     * client with the same directory and key draws from one budget
+     * @param directory folder for rate limit state, created if missing
+     */
+    public RiotClientBuilder sharedLimits(Path directory) {
+        this.sharedLimits = directory;
+        return this;
+    }
+
+    /**
+     * Saves rate limit state to a directory on shutdown and every few seconds, so a restarted process doesn't burst
+     * into limits riot still counts from before the restart. Ignored if {@link #sharedLimits(Path)} is set, whose
+     * files already outlive the process. Dispose the client when done with it so it saves one last time and stops saving
+     * @param directory folder for one snapshot file per key, created if missing
+     */
+    public RiotClientBuilder persistedLimits(Path directory) {
+        this.persistedLimits = directory;
+        return this;
+    }
+
+    /**
+     * Limits how often the client retries failed calls, by default {@link RetryBudget#standard()}. Every key of the
+     * client spends from the same budget
+     */
+    public RiotClientBuilder retryBudget(RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+        return this;
+    }
+
     public RiotClientBuilder riotRegion(RiotRegion region) {
         builder.riotRegion(region);
         return this;
@@ -34,15 +82,25 @@ public class RiotClientBuilder {
         return this;
     }
 
+    /**
+     * Matches keep their rounds as JSON until something reads them, for clients that hold on to a lot of matches
+     */
+    public RiotClientBuilder lazyRounds(boolean lazy) {
+        builder.lazyRounds(lazy);
+        return this;
+    }
+
     /**
      * Builds a client with access to dev endpoints
      * @return a mono that tests your api key and evaluates to a {@link RiotDevelopmentAPIClient}
      */
     public Mono<RiotDevelopmentAPIClient> buildDevClient() {
         ClientConfig config = builder.build();
+        RetryBudget budget = budget();
 
-        return new RiotDevelopmentAPIClient(config, RatePresets.DEV_CLIENT).test()
-                .onErrorResume(e -> Mono.error(new InvalidTokenException("The token specified is not valid"))) //todo this is a little generic of a catch
+        RiotDevelopmentAPIClient client = new RiotDevelopmentAPIClient(config, new TokenPool(config.tokens(), token -> devLimiter(token).retryBudget(budget)));
+        return client.test()
+                .onErrorResume(e -> failed(client)) //todo this is a little generic of a catch
                 .ofType(RiotDevelopmentAPIClient.class);
     }
 
@@ -52,9 +110,34 @@ public class RiotClientBuilder {
      */
     public Mono<RiotProductionAPIClient> buildProductionClient() {
         ClientConfig config = builder.build();
+        RetryBudget budget = budget();
 
-        return new RiotProductionAPIClient(config, RatePresets.PROD_CLIENT).test()
-                .onErrorResume(e -> Mono.error(new InvalidTokenException("The token specified is not valid")))
+        RiotProductionAPIClient client = new RiotProductionAPIClient(config, new TokenPool(config.tokens(), token -> productionLimiter(token).retryBudget(budget)));
+        return client.test()
+                .onErrorResume(e -> failed(client))
                 .ofType(RiotProductionAPIClient.class);
     }
+
+    //nobody gets a client that failed its test, so nobody else would dispose it
+    private static <T> Mono<T> failed(RiotAPIClient client) {
+        client.dispose();
+        return Mono.error(new InvalidTokenException("The token specified is not valid"));
+    }
+
+    //a new budget per client, so building two clients from one builder doesn't make them share
+    private RetryBudget budget() {
+        return retryBudget == null ? RetryBudget.standard() : retryBudget;
+    }
+
+    private ProactiveRatelimiter devLimiter(String token) {
+        if(sharedLimits != null) return RatePresets.devShared(sharedLimits, token);
+        if(persistedLimits != null) return RatePresets.devPersisted(persistedLimits, token);
+        return RatePresets.dev();
+    }
+
+    private ProactiveRatelimiter productionLimiter(String token) {
+        if(sharedLimits != null) return RatePresets.productionShared(sharedLimits, token);
+        if(persistedLimits != null) return RatePresets.productionPersisted(persistedLimits, token);
+        return RatePresets.production();
+    }
 }
@@ -18,7 +18,8 @@ import tech.nathann.riot4j.json.valLeaderboard.LeaderboardPlayerData;
 import tech.nathann.riot4j.json.valPlatform.PlatformStatusData;
 import tech.nathann.riot4j.objects.ValActId;
 import tech.nathann.riot4j.objects.ValStatusUpdateEvent;
-import tech.nathann.riot4j.queues.Ratelimiter;
+import tech.nathann.riot4j.queues.RateLimits;
+import tech.nathann.riot4j.queues.TokenPool;
 
 import java.time.Duration;
 import java.util.HashMap;
@@ -32,8 +33,8 @@ public class RiotDevelopmentAPIClient extends RiotAPIClient {
 
     private static final Logger log = LoggerFactory.getLogger(RiotDevelopmentAPIClient.class);
 
-    protected RiotDevelopmentAPIClient(ClientConfig config, Ratelimiter limiter) {
-        super(config, limiter);
+    protected RiotDevelopmentAPIClient(ClientConfig config, TokenPool keys) {
+        super(config, keys);
     }
 
     /**
@@ -202,11 +203,12 @@ public class RiotDevelopmentAPIClient extends RiotAPIClient {
     }
 
     /**
-     * Tests the API key of this client. Used in construction
+     * Tests every API key of this client. Used in construction
      * @return
      */
     @Override
     public Mono<RiotAPIClient> test() { //todo make protected?
-        return this.getValStatus(valRegion).thenReturn(this);
+        return testEveryKey(RateLimits.VAL_STATUS, valRegion, token -> getValStatusRaw(token, valRegion.toString()), PlatformStatusData.class)
+                .thenReturn(this);
     }
 }
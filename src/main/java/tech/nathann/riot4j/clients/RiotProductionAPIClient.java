@@ -5,12 +5,14 @@ import tech.nathann.riot4j.api.match.ValMatch;
 import tech.nathann.riot4j.api.match.ValMatchlist;
 import tech.nathann.riot4j.enums.ValRecentQueue;
 import tech.nathann.riot4j.enums.regions.ValRegion;
+import tech.nathann.riot4j.json.valMatch.MatchVisitor;
 import tech.nathann.riot4j.json.valMatch.RecentMatchesData;
-import tech.nathann.riot4j.queues.Ratelimiter;
+import tech.nathann.riot4j.queues.RateLimits;
+import tech.nathann.riot4j.queues.TokenPool;
 
 public class RiotProductionAPIClient extends RiotDevelopmentAPIClient {
-    protected RiotProductionAPIClient(ClientConfig config, Ratelimiter limiter) {
-        super(config, limiter);
+    protected RiotProductionAPIClient(ClientConfig config, TokenPool keys) {
+        super(config, keys);
     }
 
     public Mono<RecentMatchesData> getRecentMatches(ValRegion region, ValRecentQueue queue) {
@@ -22,14 +24,25 @@ public class RiotProductionAPIClient extends RiotDevelopmentAPIClient {
                 .map(data -> new ValMatch(data));
     }
 
+    /**
+     * Walks a match with a visitor instead of building all of it, for jobs that only want a few numbers out of it
+     * @return the visitor, after it has seen the match
+     */
+    public <V extends MatchVisitor> Mono<V> visitMatch(ValRegion region, String matchId, V visitor) {
+        return visitMatchData(region, matchId, visitor);
+    }
+
     public Mono<ValMatchlist> getMatchList(ValRegion region, String puuid) {
         return getMatchListData(region, puuid)
                 .map(data -> new ValMatchlist(this, data, region));
     }
 
+    /**
+     * Tests every API key of this client. Used in construction
+     */
     @Override
     public Mono<RiotAPIClient> test() {
-        return getRecentMatches(valRegion, ValRecentQueue.UNRATED)
+        return testEveryKey(RateLimits.VAL_RECENT_MATCHES, valRegion, token -> getRecentMatchesRaw(token, valRegion.toString(), ValRecentQueue.UNRATED.toString()), RecentMatchesData.class)
                 .thenReturn(this);
     }
 }
@@ -0,0 +1,7 @@
+package tech.nathann.riot4j.exceptions;
+
+public class DeadlineExceededException extends RuntimeException {
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
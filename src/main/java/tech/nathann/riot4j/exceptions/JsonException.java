@@ -1,9 +1,9 @@
 package tech.nathann.riot4j.exceptions;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import java.io.IOException;
 
 public class JsonException extends RuntimeException {
-    public JsonException(JsonProcessingException source) {
+    public JsonException(IOException source) {
         super(source);
     }
 }
@@ -0,0 +1,7 @@
+package tech.nathann.riot4j.exceptions;
+
+public class LoadShedException extends RuntimeException {
+    public LoadShedException(String message) {
+        super(message);
+    }
+}
@@ -1,22 +1,73 @@
 package tech.nathann.riot4j.exceptions;
 
+import io.netty.handler.codec.http.HttpHeaders;
 import reactor.netty.http.client.HttpClientResponse;
 
 public class RateLimitedException extends WebException {
     private final int secs;
-    private final boolean isMethod;
+    private final Scope scope;
 
     public RateLimitedException(HttpClientResponse response, String content) {
         super(response, content);
-        this.secs = Integer.parseInt(response.responseHeaders().get("Retry-After"));
-        this.isMethod = response.responseHeaders().get("X-Rate-Limit-Type").equals("method");
+        HttpHeaders headers = response.responseHeaders();
+        this.secs = parseSecs(headers.get("Retry-After"));
+        this.scope = Scope.of(headers.get("X-Rate-Limit-Type"));
     }
 
+    //riot only sends whole seconds, anything else (missing, or an http date) counts as no hint at all
+    private static int parseSecs(String header) {
+        if(header == null) return -1;
+        try {
+            return Integer.parseInt(header.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return seconds riot asked us to wait, or -1 if it didn't say
+     */
     public int getSecs() {
         return secs;
     }
 
+    public boolean hasRetryAfter() {
+        return secs >= 0;
+    }
+
+    public Scope getScope() {
+        return scope;
+    }
+
     public boolean isMethod() {
-        return isMethod;
+        return scope == Scope.METHOD;
+    }
+
+    /**
+     * Which limit a 429 came from, read from X-Rate-Limit-Type
+     */
+    public enum Scope {
+        /**
+         * The limit of one method for our key, only that method's bucket in that region has to wait
+         */
+        METHOD,
+        /**
+         * The app limit of our key, every method in that region has to wait
+         */
+        APPLICATION,
+        /**
+         * The service behind the method is overloaded for everyone, nothing about our key. Also used when the header
+         * is missing, which riot does for service 429s
+         */
+        SERVICE;
+
+        public static Scope of(String header) {
+            if(header == null) return SERVICE;
+            switch (header.trim().toLowerCase()) {
+                case "method": return METHOD;
+                case "application": return APPLICATION;
+                default: return SERVICE;
+            }
+        }
     }
-}
\ No newline at end of file
+}
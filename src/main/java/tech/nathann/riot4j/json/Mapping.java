@@ -1,11 +1,17 @@
 package tech.nathann.riot4j.json;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
 import tech.nathann.riot4j.exceptions.JsonException;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.function.Function;
 
 public class Mapping {
@@ -22,6 +28,32 @@ public class Mapping {
         };
     }
 
+    /**
+     * Parses a response body where it lies. Jackson's byte parser reads the UTF-8 itself, so a large match is never
+     * turned into a String first. The buffer belongs to the caller and has to outlive the call
+     */
+    public static <T> Function<ByteBuf, T> decode(Class<T> tClass) {
+        ObjectReader reader = mapper.readerFor(tClass);
+        return body -> {
+            try(JsonParser parser = parse(body)) {
+                return reader.readValue(parser);
+            } catch (IOException e) {
+                throw new JsonException(e);
+            }
+        };
+    }
+
+    /**
+     * @return a parser over a body that doesn't copy it into a String, the buffer has to outlive the parser
+     */
+    public static JsonParser parse(ByteBuf body) throws IOException {
+        if(body.hasArray()) { //heap buffers are parsed in place
+            return mapper.getFactory().createParser(body.array(), body.arrayOffset() + body.readerIndex(), body.readableBytes());
+        }
+        //direct and composite buffers are streamed through jackson's own recycled chunks
+        return mapper.getFactory().createParser((InputStream) new ByteBufInputStream(body));
+    }
+
     public static ObjectMapper getMapper() {
         return mapper;
     }
@@ -0,0 +1,187 @@
+package tech.nathann.riot4j.json.valMatch;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import io.netty.buffer.ByteBuf;
+import tech.nathann.riot4j.exceptions.JsonException;
+import tech.nathann.riot4j.json.Mapping;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A {@link MatchData} that only reads match info, players, coaches and teams up front. Rounds are most of a match, so
+ * they're kept as their raw bytes and each round is parsed the first time it's asked for. Holding a lot of matches for
+ * list views and caches then costs about as much memory as their JSON
+ */
+public class LazyMatchData implements MatchData {
+    private static final ObjectReader INFO = Mapping.getMapper().readerFor(MatchInfoData.class);
+    private static final ObjectReader PLAYER = Mapping.getMapper().readerFor(PlayerData.class);
+    private static final ObjectReader COACH = Mapping.getMapper().readerFor(CoachData.class);
+    private static final ObjectReader TEAM = Mapping.getMapper().readerFor(TeamData.class);
+    private static final ObjectReader ROUND = Mapping.getMapper().readerFor(RoundResultData.class);
+
+    private final MatchInfoData matchInfo;
+    private final List<PlayerData> players;
+    private final List<CoachData> coaches;
+    private final List<TeamData> teams;
+    private final Rounds roundResults;
+
+    private LazyMatchData(MatchInfoData matchInfo, List<PlayerData> players, List<CoachData> coaches, List<TeamData> teams, Rounds roundResults) {
+        this.matchInfo = matchInfo;
+        this.players = players;
+        this.coaches = coaches;
+        this.teams = teams;
+        this.roundResults = roundResults;
+    }
+
+    /**
+     * @return a decoder for {@link tech.nathann.riot4j.queues.TokenPool#push} that reads matches lazily
+     */
+    public static Function<ByteBuf, MatchData> decoder() {
+        return LazyMatchData::decode;
+    }
+
+    /**
+     * Reads a match, copying its rounds out of the body. The body isn't needed anymore once this returns
+     */
+    public static LazyMatchData decode(ByteBuf body) {
+        int base = body.readerIndex(); //parser offsets count from here, and a streamed body moves its reader index
+        MatchInfoData matchInfo = null;
+        List<PlayerData> players = Collections.emptyList();
+        List<CoachData> coaches = Collections.emptyList();
+        List<TeamData> teams = Collections.emptyList();
+        Rounds rounds = new Rounds(new byte[0], new int[0]);
+
+        try(JsonParser parser = Mapping.parse(body)) {
+            if(parser.nextToken() != JsonToken.START_OBJECT) throw new JsonParseException(parser, "Expected a match but got " + parser.currentToken());
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                switch(name) {
+                    case "matchInfo": matchInfo = INFO.readValue(parser); break;
+                    case "players": players = list(parser, PLAYER); break;
+                    case "coaches": coaches = list(parser, COACH); break;
+                    case "teams": teams = list(parser, TEAM); break;
+                    case "roundResults": rounds = rounds(parser, body, base); break;
+                    default: parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw new JsonException(e);
+        }
+        return new LazyMatchData(matchInfo, players, coaches, teams, rounds);
+    }
+
+    private static <T> List<T> list(JsonParser parser, ObjectReader reader) throws IOException {
+        if(parser.currentToken() != JsonToken.START_ARRAY) return Collections.emptyList();
+        List<T> list = new ArrayList<>();
+        while(MatchParser.next(parser, JsonToken.START_OBJECT)) list.add(reader.readValue(parser));
+        return Collections.unmodifiableList(list);
+    }
+
+    //finds where every round starts and ends, then copies all of them out in one go
+    private static Rounds rounds(JsonParser parser, ByteBuf body, int base) throws IOException {
+        if(parser.currentToken() != JsonToken.START_ARRAY) return new Rounds(new byte[0], new int[0]);
+        int[] bounds = new int[64]; //start and end of each round, overtime can go past 32 rounds
+        int count = 0;
+        while(MatchParser.next(parser, JsonToken.START_OBJECT)) {
+            if(count * 2 == bounds.length) bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            bounds[count * 2] = (int) parser.getTokenLocation().getByteOffset();
+            parser.skipChildren();
+            bounds[count * 2 + 1] = (int) parser.getCurrentLocation().getByteOffset();
+            count++;
+        }
+        if(count == 0) return new Rounds(new byte[0], new int[0]);
+
+        int first = bounds[0];
+        byte[] bytes = new byte[bounds[count * 2 - 1] - first];
+        body.getBytes(base + first, bytes);
+        int[] offsets = Arrays.copyOf(bounds, count * 2);
+        for(int i = 0; i < offsets.length; i++) offsets[i] -= first;
+        return new Rounds(bytes, offsets);
+    }
+
+    @Override
+    public MatchInfoData matchInfo() {
+        return matchInfo;
+    }
+
+    @Override
+    public List<PlayerData> players() {
+        return players;
+    }
+
+    @Override
+    public List<CoachData> coaches() {
+        return coaches;
+    }
+
+    @Override
+    public List<TeamData> teams() {
+        return teams;
+    }
+
+    /**
+     * The size is known without parsing anything, every round is parsed on its first get and kept after that
+     */
+    @Override
+    public List<RoundResultData> roundResults() {
+        return roundResults;
+    }
+
+    /**
+     * @return how many rounds have been parsed so far
+     */
+    public int parsedRounds() {
+        int parsed = 0;
+        for(RoundResultData round: roundResults.parsed) {
+            if(round != null) parsed++;
+        }
+        return parsed;
+    }
+
+    @Override
+    public String toString() {
+        return "LazyMatchData{matchInfo=" + matchInfo + ", players=" + players.size() + ", rounds=" + roundResults.size() + ", parsed=" + parsedRounds() + "}";
+    }
+
+    private static class Rounds extends AbstractList<RoundResultData> {
+        private final byte[] bytes;
+        private final int[] offsets; //start and end of each round in bytes
+        //two threads may both parse a round the first time, they get equal rounds and one of them is kept
+        private final RoundResultData[] parsed;
+
+        private Rounds(byte[] bytes, int[] offsets) {
+            this.bytes = bytes;
+            this.offsets = offsets;
+            this.parsed = new RoundResultData[offsets.length / 2];
+        }
+
+        @Override
+        public RoundResultData get(int index) {
+            RoundResultData round = parsed[index];
+            if(round == null) {
+                try {
+                    round = ROUND.readValue(bytes, offsets[index * 2], offsets[index * 2 + 1] - offsets[index * 2]);
+                } catch (IOException e) {
+                    throw new JsonException(e);
+                }
+                parsed[index] = round; //immutables are safe to publish this way
+            }
+            return round;
+        }
+
+        @Override
+        public int size() {
+            return parsed.length;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package tech.nathann.riot4j.json.valMatch;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import io.netty.buffer.ByteBuf;
+import tech.nathann.riot4j.enums.ValRoundResult;
+import tech.nathann.riot4j.exceptions.JsonException;
+import tech.nathann.riot4j.json.Mapping;
+import tech.nathann.riot4j.objects.ValTeamId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Walks a match from /val/match/v1/matches token by token and tells a {@link MatchVisitor} what it finds, without
+ * building the {@link MatchData} tree. Fields the parser doesn't know are skipped, same as the mapper does
+ */
+public class MatchParser {
+    private static final ObjectReader INFO = Mapping.getMapper().readerFor(MatchInfoData.class);
+    private static final ObjectReader PLAYER = Mapping.getMapper().readerFor(PlayerData.class);
+    private static final ObjectReader COACH = Mapping.getMapper().readerFor(CoachData.class);
+    private static final ObjectReader TEAM = Mapping.getMapper().readerFor(TeamData.class);
+
+    private final JsonParser parser;
+    private final MatchVisitor visitor;
+    //one of each per walk, handed to the visitor over and over
+    private final MatchVisitor.Round round = new MatchVisitor.Round();
+    private final MatchVisitor.PlayerRound player = new MatchVisitor.PlayerRound();
+    private final MatchVisitor.Kill kill = new MatchVisitor.Kill();
+    private final List<MatchVisitor.Damage> damage = new ArrayList<>(); //a player's damage waits for their puuid
+
+    private MatchParser(JsonParser parser, MatchVisitor visitor) {
+        this.parser = parser;
+        this.visitor = visitor;
+    }
+
+    /**
+     * @param parser positioned before or on the start of the match
+     */
+    public static void visit(JsonParser parser, MatchVisitor visitor) throws IOException {
+        new MatchParser(parser, visitor).match();
+    }
+
+    /**
+     * Walks a response body, see {@link Mapping#decode(Class)} for how it's read
+     * @return the visitor, once it has seen the whole match
+     */
+    public static <V extends MatchVisitor> V visit(ByteBuf body, V visitor) {
+        try(JsonParser parser = Mapping.parse(body)) {
+            visit(parser, visitor);
+            return visitor;
+        } catch (IOException e) {
+            throw new JsonException(e);
+        }
+    }
+
+    /**
+     * @return a decoder for {@link tech.nathann.riot4j.queues.TokenPool#push} that walks the body with a visitor
+     */
+    public static <V extends MatchVisitor> Function<ByteBuf, V> decoder(V visitor) {
+        return body -> visit(body, visitor);
+    }
+
+    private void match() throws IOException {
+        if(parser.currentToken() == null) parser.nextToken();
+        expect(JsonToken.START_OBJECT);
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            switch(name) {
+                case "matchInfo": visitor.matchInfo(INFO.readValue(parser)); break;
+                case "players": if(isArray()) while(next(parser, JsonToken.START_OBJECT)) visitor.player(PLAYER.readValue(parser)); break;
+                case "coaches": if(isArray()) while(next(parser, JsonToken.START_OBJECT)) visitor.coach(COACH.readValue(parser)); break;
+                case "teams": if(isArray()) while(next(parser, JsonToken.START_OBJECT)) visitor.team(TEAM.readValue(parser)); break;
+                case "roundResults": rounds(); break;
+                default: parser.skipChildren();
+            }
+        }
+    }
+
+    private void rounds() throws IOException {
+        if(!isArray()) return;
+        int index = 0;
+        while(next(parser, JsonToken.START_OBJECT)) {
+            round.reset(index);
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                switch(name) {
+                    case "roundNum": round.roundNum = parser.getValueAsInt(); break;
+                    case "roundResult": round.roundResult = parser.getValueAsString(); break;
+                    case "winningTeam": round.winningTeam = team(parser.getValueAsString()); break;
+                    case "bombPlanter": round.bombPlanter = parser.getValueAsString(); break;
+                    case "bombDefuser": round.bombDefuser = parser.getValueAsString(); break;
+                    case "plantRoundTime": round.plantRoundTime = parser.getValueAsInt(); break;
+                    case "plantSite": round.plantSite = parser.getValueAsString(); break;
+                    case "defuseRoundTime": round.defuseRoundTime = parser.getValueAsInt(); break;
+                    case "roundResultCode": round.roundResultCode = result(parser.getValueAsString()); break;
+                    case "winningTeamRole": round.winningTeamRole = parser.getValueAsString(); break;
+                    case "playerStats": playerStats(index); break;
+                    default: parser.skipChildren(); //locations of the plant and defuse
+                }
+            }
+            visitor.round(round);
+            index++;
+        }
+    }
+
+    private void playerStats(int index) throws IOException {
+        if(!isArray()) return;
+        while(next(parser, JsonToken.START_OBJECT)) {
+            player.reset(index);
+            int damages = 0;
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                switch(name) {
+                    case "puuid": player.puuid = parser.getValueAsString(); break;
+                    case "kills": player.kills += kills(index); break;
+                    case "damage": damages = damage(index); break;
+                    case "score": player.score = parser.getValueAsInt(); break;
+                    case "economy": economy(); break;
+                    default: parser.skipChildren(); //ability effects
+                }
+            }
+            for(int i = 0; i < damages; i++) {
+                MatchVisitor.Damage event = damage.get(i);
+                event.dealer = player.puuid;
+                visitor.damage(event);
+            }
+            visitor.playerRound(player);
+        }
+    }
+
+    private int kills(int index) throws IOException {
+        if(!isArray()) return 0;
+        int count = 0;
+        while(next(parser, JsonToken.START_OBJECT)) {
+            kill.reset(index);
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                switch(name) {
+                    case "timeSinceGameStartMillis": kill.timeSinceGameStartMillis = parser.getValueAsInt(); break;
+                    case "timeSinceRoundStartMillis": kill.timeSinceRoundStartMillis = parser.getValueAsInt(); break;
+                    case "killer": kill.killer = parser.getValueAsString(); break;
+                    case "victim": kill.victim = parser.getValueAsString(); break;
+                    case "victimLocation": victimLocation(); break;
+                    case "assistants":
+                        if(!isArray()) break;
+                        while(next(parser, JsonToken.VALUE_STRING)) kill.assistants.add(parser.getText());
+                        break;
+                    case "finishingDamage": finishingDamage(); break;
+                    default: parser.skipChildren(); //where everyone was standing, most of a match's bytes
+                }
+            }
+            visitor.kill(kill);
+            count++;
+        }
+        return count;
+    }
+
+    private int damage(int index) throws IOException {
+        if(!isArray()) return 0;
+        int count = 0;
+        while(next(parser, JsonToken.START_OBJECT)) {
+            if(count == damage.size()) damage.add(new MatchVisitor.Damage());
+            MatchVisitor.Damage event = damage.get(count++);
+            event.reset(index);
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                switch(name) {
+                    case "receiver": event.receiver = parser.getValueAsString(); break;
+                    case "damage": event.damage = parser.getValueAsInt(); break;
+                    case "legshots": event.legshots = parser.getValueAsInt(); break;
+                    case "bodyshots": event.bodyshots = parser.getValueAsInt(); break;
+                    case "headshots": event.headshots = parser.getValueAsInt(); break;
+                    default: parser.skipChildren();
+                }
+            }
+        }
+        return count;
+    }
+
+    private void economy() throws IOException {
+        if(parser.currentToken() != JsonToken.START_OBJECT) return; //null
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            switch(name) {
+                case "loadoutValue": player.loadoutValue = parser.getValueAsInt(); break;
+                case "weapon": player.weapon = parser.getValueAsString(); break;
+                case "armor": player.armor = parser.getValueAsString(); break;
+                case "remaining": player.remaining = parser.getValueAsInt(); break;
+                case "spent": player.spent = parser.getValueAsInt(); break;
+                default: parser.skipChildren();
+            }
+        }
+    }
+
+    private void victimLocation() throws IOException {
+        if(parser.currentToken() != JsonToken.START_OBJECT) return;
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if(name.equals("x")) kill.victimX = parser.getValueAsInt();
+            else if(name.equals("y")) kill.victimY = parser.getValueAsInt();
+            else parser.skipChildren();
+        }
+    }
+
+    private void finishingDamage() throws IOException {
+        if(parser.currentToken() != JsonToken.START_OBJECT) return;
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            switch(name) {
+                case "damageType": kill.damageType = parser.getValueAsString(); break;
+                case "damageItem": kill.damageItem = parser.getValueAsString(); break;
+                case "isSecondaryFireMode": kill.secondaryFireMode = parser.getValueAsBoolean(); break;
+                default: parser.skipChildren();
+            }
+        }
+    }
+
+    private void expect(JsonToken token) throws IOException {
+        if(parser.currentToken() != token) throw new JsonParseException(parser, "Expected " + token + " but got " + parser.currentToken());
+    }
+
+    //a null list is walked like an empty one
+    private boolean isArray() {
+        return parser.currentToken() == JsonToken.START_ARRAY;
+    }
+
+    /**
+     * Moves to the next element of an array that is of the given type, skipping nulls and anything else in between
+     * @return false once the array ends
+     */
+    static boolean next(JsonParser parser, JsonToken type) throws IOException {
+        while(true) {
+            JsonToken token = parser.nextToken();
+            if(token == type) return true;
+            if(token == JsonToken.END_ARRAY || token == null) return false;
+            parser.skipChildren();
+        }
+    }
+
+    //the two teams of a normal match keep their constants instead of a new id per round
+    private static ValTeamId team(String value) {
+        if(value == null) return null;
+        if(value.equals(ValTeamId.BLUE.toString())) return ValTeamId.BLUE;
+        if(value.equals(ValTeamId.RED.toString())) return ValTeamId.RED;
+        return new ValTeamId(value);
+    }
+
+    private static ValRoundResult result(String value) {
+        for(ValRoundResult result: ValRoundResult.values()) {
+            if(result.toString().equals(value)) return result;
+        }
+        return ValRoundResult.OTHER;
+    }
+}
@@ -0,0 +1,289 @@
+package tech.nathann.riot4j.json.valMatch;
+
+import tech.nathann.riot4j.enums.ValRoundResult;
+import tech.nathann.riot4j.objects.ValTeamId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Gets called by {@link MatchParser} while it walks a match, for jobs that only need a few numbers out of it. Only the
+ * small parts of a match (info, players, coaches and teams) are built as data objects. Rounds, kills and damage are
+ * handed over in event objects that the parser reuses, so copy out whatever has to outlive the call.
+ * <p>
+ * Within a round, kills come first as they're read, then each player's damage followed by that player's round, and the
+ * round itself comes last
+ */
+public interface MatchVisitor {
+    default void matchInfo(MatchInfoData info) {}
+
+    default void player(PlayerData player) {}
+
+    default void coach(CoachData coach) {}
+
+    default void team(TeamData team) {}
+
+    default void kill(Kill kill) {}
+
+    default void damage(Damage damage) {}
+
+    default void playerRound(PlayerRound stats) {}
+
+    default void round(Round round) {}
+
+    /**
+     * A round without its player stats, which were visited before it
+     */
+    final class Round {
+        int index;
+        int roundNum;
+        String roundResult;
+        ValTeamId winningTeam;
+        ValRoundResult roundResultCode;
+        String bombPlanter;
+        String bombDefuser;
+        int plantRoundTime;
+        String plantSite;
+        int defuseRoundTime;
+        String winningTeamRole;
+
+        void reset(int index) {
+            this.index = index;
+            roundNum = plantRoundTime = defuseRoundTime = 0;
+            roundResult = bombPlanter = bombDefuser = plantSite = winningTeamRole = null;
+            winningTeam = null;
+            roundResultCode = null;
+        }
+
+        /**
+         * @return position of this round in the match, which every event of the round carries too
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public int getRoundNum() {
+            return roundNum;
+        }
+
+        public String getRoundResult() {
+            return roundResult;
+        }
+
+        public ValTeamId getWinningTeam() {
+            return winningTeam;
+        }
+
+        public ValRoundResult getRoundResultCode() {
+            return roundResultCode;
+        }
+
+        /**
+         * @return puuid of the planter, null if nobody planted
+         */
+        public String getBombPlanter() {
+            return bombPlanter;
+        }
+
+        /**
+         * @return puuid of the defuser, null if nobody defused
+         */
+        public String getBombDefuser() {
+            return bombDefuser;
+        }
+
+        public int getPlantRoundTime() {
+            return plantRoundTime;
+        }
+
+        public String getPlantSite() {
+            return plantSite;
+        }
+
+        public int getDefuseRoundTime() {
+            return defuseRoundTime;
+        }
+
+        public String getWinningTeamRole() {
+            return winningTeamRole;
+        }
+    }
+
+    /**
+     * One player's part of a round, without their kills and damage which were visited before it
+     */
+    final class PlayerRound {
+        int round;
+        String puuid;
+        int score;
+        int kills;
+        int loadoutValue;
+        String weapon;
+        String armor;
+        int remaining;
+        int spent;
+
+        void reset(int round) {
+            this.round = round;
+            puuid = weapon = armor = null;
+            score = kills = loadoutValue = remaining = spent = 0;
+        }
+
+        public int getRound() {
+            return round;
+        }
+
+        public String getPuuid() {
+            return puuid;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        public int getKills() {
+            return kills;
+        }
+
+        public int getLoadoutValue() {
+            return loadoutValue;
+        }
+
+        public String getWeapon() {
+            return weapon;
+        }
+
+        public String getArmor() {
+            return armor;
+        }
+
+        public int getRemaining() {
+            return remaining;
+        }
+
+        public int getSpent() {
+            return spent;
+        }
+    }
+
+    /**
+     * A kill without where every player was standing, that part of the payload is skipped
+     */
+    final class Kill {
+        int round;
+        int timeSinceGameStartMillis;
+        int timeSinceRoundStartMillis;
+        String killer;
+        String victim;
+        int victimX;
+        int victimY;
+        final List<String> assistants = new ArrayList<>();
+        private final List<String> assistantsView = Collections.unmodifiableList(assistants);
+        String damageType;
+        String damageItem;
+        boolean secondaryFireMode;
+
+        void reset(int round) {
+            this.round = round;
+            timeSinceGameStartMillis = timeSinceRoundStartMillis = victimX = victimY = 0;
+            killer = victim = damageType = damageItem = null;
+            assistants.clear();
+            secondaryFireMode = false;
+        }
+
+        public int getRound() {
+            return round;
+        }
+
+        public int getTimeSinceGameStartMillis() {
+            return timeSinceGameStartMillis;
+        }
+
+        public int getTimeSinceRoundStartMillis() {
+            return timeSinceRoundStartMillis;
+        }
+
+        public String getKiller() {
+            return killer;
+        }
+
+        public String getVictim() {
+            return victim;
+        }
+
+        public int getVictimX() {
+            return victimX;
+        }
+
+        public int getVictimY() {
+            return victimY;
+        }
+
+        /**
+         * @return puuids of the assistants, the list is reused for the next kill
+         */
+        public List<String> getAssistants() {
+            return assistantsView;
+        }
+
+        public String getDamageType() {
+            return damageType;
+        }
+
+        public String getDamageItem() {
+            return damageItem;
+        }
+
+        public boolean isSecondaryFireMode() {
+            return secondaryFireMode;
+        }
+    }
+
+    final class Damage {
+        int round;
+        String dealer;
+        String receiver;
+        int damage;
+        int legshots;
+        int bodyshots;
+        int headshots;
+
+        void reset(int round) {
+            this.round = round;
+            dealer = receiver = null;
+            damage = legshots = bodyshots = headshots = 0;
+        }
+
+        public int getRound() {
+            return round;
+        }
+
+        /**
+         * @return puuid of the player whose round stats this damage was listed in
+         */
+        public String getDealer() {
+            return dealer;
+        }
+
+        public String getReceiver() {
+            return receiver;
+        }
+
+        public int getDamage() {
+            return damage;
+        }
+
+        public int getLegshots() {
+            return legshots;
+        }
+
+        public int getBodyshots() {
+            return bodyshots;
+        }
+
+        public int getHeadshots() {
+            return headshots;
+        }
+    }
+}
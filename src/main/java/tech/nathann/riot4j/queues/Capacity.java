@@ -0,0 +1,50 @@
+package tech.nathann.riot4j.queues;
+
+import java.time.Instant;
+
+/**
+ * How much of one rate limit is left in one region at the moment it was taken, see
+ * {@link Ratelimiter#getCapacity(RateLimits, tech.nathann.riot4j.enums.regions.Region)}. Meant for deciding how much
+ * work to start, by the time it's read other requests may already have changed it
+ */
+public class Capacity {
+    private final int available;
+    private final int queued;
+    private final Instant nextFree;
+
+    public Capacity(int available, int queued, Instant nextFree) {
+        this.available = available;
+        this.queued = queued;
+        this.nextFree = nextFree;
+    }
+
+    /**
+     * @return requests that could be sent right now without waiting, method and app limits both counted
+     */
+    public int getAvailable() {
+        return available;
+    }
+
+    /**
+     * @return requests already waiting for a ticket, these are served before anything pushed now
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return when the next ticket frees up, now if one is free already
+     */
+    public Instant getNextFree() {
+        return nextFree;
+    }
+
+    @Override
+    public String toString() {
+        return "Capacity{" +
+                "available=" + available +
+                ", queued=" + queued +
+                ", nextFree=" + nextFree +
+                '}';
+    }
+}
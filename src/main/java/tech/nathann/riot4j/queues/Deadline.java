@@ -0,0 +1,46 @@
+package tech.nathann.riot4j.queues;
+
+import reactor.util.context.Context;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * The latest time a caller still wants an answer. Requests whose estimated ticket wait already ends after their
+ * deadline fail with a {@link tech.nathann.riot4j.exceptions.DeadlineExceededException} instead of using a ticket. Set
+ * it on any client call with {@code .contextWrite(Deadline.in(Duration.ofSeconds(5)).context())}
+ */
+public class Deadline {
+    private final Instant instant;
+
+    private Deadline(Instant instant) {
+        this.instant = instant;
+    }
+
+    public static Deadline at(Instant instant) {
+        return new Deadline(instant);
+    }
+
+    public static Deadline in(Duration duration) {
+        return new Deadline(Instant.now().plus(duration));
+    }
+
+    public Context context() {
+        return Context.of(Deadline.class, this);
+    }
+
+    public Instant getInstant() {
+        return instant;
+    }
+
+    public long toEpochMilli() {
+        return instant.toEpochMilli();
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{" +
+                "instant=" + instant +
+                '}';
+    }
+}
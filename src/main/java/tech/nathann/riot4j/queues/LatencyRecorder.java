@@ -0,0 +1,77 @@
+package tech.nathann.riot4j.queues;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram. Values are counted in log-linear buckets (32 per power of two), so percentiles are
+ * within about 3% of the real value no matter how big it is
+ */
+public class LatencyRecorder {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB * 2 + (63 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(Duration latency) {
+        recordNanos(latency.toNanos());
+    }
+
+    public void recordNanos(long nanos) {
+        counts.incrementAndGet(index(Math.max(0, nanos / 1000))); //stored as micros
+    }
+
+    public long count() {
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 1, eg. 0.99 for p99
+     * @return the latency that percentile of recorded values are at or under, zero if nothing was recorded
+     */
+    public Duration percentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if(total == 0) return Duration.ZERO;
+
+        long target = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if(seen >= target) return Duration.ofNanos(lowerBound(i) * 1000);
+        }
+        return Duration.ofNanos(lowerBound(BUCKETS - 1) * 1000);
+    }
+
+    private static int index(long value) {
+        if(value < SUB * 2) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB - 1);
+        return SUB * 2 + (exponent - SUB_BITS - 1) * SUB + sub;
+    }
+
+    private static long lowerBound(int index) {
+        if(index < SUB * 2) return index;
+        int exponent = (index - SUB * 2) / SUB + SUB_BITS + 1;
+        int sub = (index - SUB * 2) % SUB;
+        return (1L << exponent) | ((long) sub << (exponent - SUB_BITS));
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyRecorder{" +
+                "count=" + count() +
+                ", p50=" + percentile(0.5) +
+                ", p99=" + percentile(0.99) +
+                '}';
+    }
+}
@@ -0,0 +1,20 @@
+package tech.nathann.riot4j.queues;
+
+/**
+ * What a bucket does with a request that arrives while its queue is at capacity
+ */
+public enum OverflowPolicy {
+    /**
+     * Fail the new request with a {@link tech.nathann.riot4j.exceptions.LoadShedException}
+     */
+    REJECT_NEWEST,
+    /**
+     * Queue the new request and fail the one that has waited longest in the lowest priority lane instead
+     */
+    DROP_OLDEST,
+    /**
+     * Don't build or queue the new request until the bucket has room, so a producer that subscribes with bounded
+     * concurrency slows down instead of piling up requests
+     */
+    BACKPRESSURE
+}
@@ -0,0 +1,18 @@
+package tech.nathann.riot4j.queues;
+
+import reactor.util.context.Context;
+
+/**
+ * Which lane a request waits in. Every bucket serves all waiting {@link #INTERACTIVE} requests before any
+ * {@link #NORMAL} ones, and those before any {@link #BACKGROUND} ones. Set it on any client call with
+ * {@code .contextWrite(Priority.INTERACTIVE.context())}, requests without a priority are {@link #NORMAL}
+ */
+public enum Priority {
+    INTERACTIVE,
+    NORMAL,
+    BACKGROUND;
+
+    public Context context() {
+        return Context.of(Priority.class, this);
+    }
+}
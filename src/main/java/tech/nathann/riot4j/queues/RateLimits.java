@@ -5,8 +5,8 @@ import java.time.Duration;
 public enum RateLimits {
     /**
      * i dont like having separate enums hardcoded for different client types but I also want ratelimits to be a true
-     * enum. Maybe in the long run ratelimits will be an object so that rate limits can self-adjust on the fly, but for
-     * the moment everything is static because of issues with restructuring Dispenser objects on the fly
+     * enum. The counts here are only starting points: the ProactiveRatelimiter resizes its dispensers from the
+     * X-App-Rate-Limit and X-Method-Rate-Limit headers of every response, so these just need to be safe guesses
      */
     RIOT4J_DEV_MASTER(20, Duration.ofSeconds(1)),
     RIOT4J_DEV_SECONDARY(100, Duration.ofMinutes(2)),
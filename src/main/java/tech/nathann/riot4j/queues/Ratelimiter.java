@@ -1,9 +1,41 @@
 package tech.nathann.riot4j.queues;
 
+import io.netty.buffer.ByteBuf;
+import reactor.core.Disposable;
 import reactor.core.publisher.Mono;
 import reactor.netty.http.client.HttpClient;
 import tech.nathann.riot4j.enums.regions.Region;
 
-public interface Ratelimiter {
+import java.time.Duration;
+import java.util.Optional;
+import java.util.function.Function;
+
+public interface Ratelimiter extends Disposable {
     Mono<String> push(RateLimits limit, Region region, HttpClient.ResponseReceiver<?> input);
+
+    /**
+     * Pushes a request whose body is decoded by the limiter instead of handed back as a String
+     * @param decoder reads the body, only valid during the call
+     */
+    <T> Mono<T> push(RateLimits limit, Region region, HttpClient.ResponseReceiver<?> input, Function<ByteBuf, T> decoder);
+
+    /**
+     * @return what's left of a limit in a region right now, for planning how much work to start. Empty if the limiter
+     * doesn't know its limits ahead of time
+     */
+    Optional<Capacity> getCapacity(RateLimits limit, Region region);
+
+    /**
+     * Guesses how long it would take until the last of a number of requests pushed now gets its tickets, counting
+     * everything already queued in front of them
+     * @return empty if the limiter doesn't know its limits ahead of time
+     */
+    Optional<Duration> estimate(RateLimits limit, Region region, int requests);
+
+    /**
+     * Lets go of anything the limiter keeps outside the heap, such as files it saves to. Nothing by default
+     */
+    @Override
+    default void dispose() {
+    }
 }
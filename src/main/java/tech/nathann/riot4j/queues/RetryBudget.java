@@ -0,0 +1,91 @@
+package tech.nathann.riot4j.queues;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared by every request of a client so an outage can't turn into a retry storm. Every successful call earns a
+ * fraction of a retry, every retry spends a whole one, and once the budget is empty failures are passed straight to the
+ * caller until successes refill it. Retries that do happen sleep with decorrelated jitter, so requests that failed
+ * together don't all come back at the same instant
+ */
+public class RetryBudget {
+    private static final long UNIT = 1000; //balance is kept in thousandths of a retry
+
+    private final long earned;
+    private final long burst;
+    private final long base;
+    private final long cap;
+    private final boolean requeueFront;
+    private final AtomicLong balance;
+
+    /**
+     * @param ratio retries earned per successful call, 0.1 allows one retry per ten successes
+     * @param burst retries that can be banked, the budget starts full
+     * @param base shortest sleep before a retry
+     * @param cap longest sleep before a retry
+     * @param requeueFront whether retries skip to the front of their queue, they've already waited their turn once
+     */
+    public RetryBudget(double ratio, int burst, Duration base, Duration cap, boolean requeueFront) {
+        this.earned = (long) (ratio * UNIT);
+        this.burst = burst * UNIT;
+        this.base = base.toMillis();
+        this.cap = cap.toMillis();
+        this.requeueFront = requeueFront;
+        this.balance = new AtomicLong(this.burst);
+    }
+
+    /**
+     * One retry per ten successes, up to 20 banked, sleeping between 1 and 32 seconds
+     */
+    public static RetryBudget standard() {
+        return new RetryBudget(0.1, 20, Duration.ofSeconds(1), Duration.ofSeconds(32), false);
+    }
+
+    public void onSuccess() {
+        balance.accumulateAndGet(earned, (current, add) -> Math.min(burst, current + add));
+    }
+
+    /**
+     * @return whether a retry may happen, spending one from the budget if so
+     */
+    public boolean tryRetry() {
+        long current;
+        do {
+            current = balance.get();
+            if(current < UNIT) return false;
+        } while(!balance.compareAndSet(current, current - UNIT));
+        return true;
+    }
+
+    /**
+     * Decorrelated jitter, a random sleep between the base and three times the last one
+     * @param previous the last sleep of this request, or zero for its first retry. A first retry counts from the base,
+     *                 so requests that failed together are already spread out the first time
+     */
+    public Duration backoff(Duration previous) {
+        long upper = 3 * Math.max(base, previous.toMillis());
+        long sleep = ThreadLocalRandom.current().nextLong(base, upper + 1);
+        return Duration.ofMillis(Math.min(cap, sleep));
+    }
+
+    public boolean isRequeueFront() {
+        return requeueFront;
+    }
+
+    /**
+     * @return retries that could happen right now
+     */
+    public double getBalance() {
+        return balance.get() / (double) UNIT;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryBudget{" +
+                "balance=" + getBalance() +
+                ", requeueFront=" + requeueFront +
+                '}';
+    }
+}
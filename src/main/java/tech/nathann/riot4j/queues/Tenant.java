@@ -0,0 +1,49 @@
+package tech.nathann.riot4j.queues;
+
+import reactor.util.context.Context;
+
+/**
+ * A product or team sharing a client with others. Within a priority lane every dispenser serves tenants by weight, so
+ * a tenant with weight 3 gets three tickets for every one a tenant with weight 1 gets while both are waiting, and a
+ * long sweep by one tenant can't starve the rest. Set it with {@code .contextWrite(Tenant.of("leaderboards").context())}
+ */
+public class Tenant {
+    public static final Tenant DEFAULT = new Tenant("default", 1);
+
+    private final String name;
+    private final int weight;
+
+    private Tenant(String name, int weight) {
+        this.name = name;
+        this.weight = weight;
+    }
+
+    public static Tenant of(String name) {
+        return of(name, 1);
+    }
+
+    public static Tenant of(String name, int weight) {
+        if(weight < 1) throw new IllegalArgumentException("Tenant weight must be at least 1, got " + weight);
+        return new Tenant(name, weight);
+    }
+
+    public Context context() {
+        return Context.of(Tenant.class, this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    @Override
+    public String toString() {
+        return "Tenant{" +
+                "name='" + name + '\'' +
+                ", weight=" + weight +
+                '}';
+    }
+}
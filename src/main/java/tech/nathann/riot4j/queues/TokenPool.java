@@ -0,0 +1,151 @@
+package tech.nathann.riot4j.queues;
+
+import io.netty.buffer.ByteBuf;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import tech.nathann.riot4j.enums.regions.Region;
+import tech.nathann.riot4j.queues.nlimiter.Request;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Spreads requests over one or more api keys. Every key owns its own {@link Ratelimiter} so each key's budget is
+ * counted independently, and each request goes to the key with the fewest requests outstanding for that limit
+ */
+public class TokenPool {
+    private final List<Key> keys;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    /**
+     * @param tokens api keys, all of the same type (dev or production)
+     * @param limiters called once per key to make that key's limiter
+     */
+    public TokenPool(List<String> tokens, Supplier<? extends Ratelimiter> limiters) {
+        this(tokens, token -> limiters.get());
+    }
+
+    /**
+     * @param tokens api keys, all of the same type (dev or production)
+     * @param limiters called once per key with that key to make its limiter
+     */
+    public TokenPool(List<String> tokens, Function<String, ? extends Ratelimiter> limiters) {
+        if(tokens.isEmpty()) throw new IllegalArgumentException("A token pool needs at least one token");
+        this.keys = tokens.stream()
+                .map(token -> new Key(token, limiters.apply(token)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param limit bucket of the request
+     * @param region region of the request
+     * @param request builds the http request for whichever token gets picked
+     * @return the body of the response
+     */
+    public Mono<String> push(RateLimits limit, Region region, Function<String, HttpClient.ResponseReceiver<?>> request) {
+        return push(limit, region, request, Request.UTF_8);
+    }
+
+    /**
+     * @param decoder reads the body of the response, see {@link Ratelimiter#push(RateLimits, Region, HttpClient.ResponseReceiver, Function)}
+     * @return the decoded body of the response
+     */
+    public <T> Mono<T> push(RateLimits limit, Region region, Function<String, HttpClient.ResponseReceiver<?>> request, Function<ByteBuf, T> decoder) {
+        return Mono.defer(() -> push(pick(limit), limit, region, request, decoder));
+    }
+
+    /**
+     * Sends a request once with every key, one after the other, for checking that all of them work
+     * @return the decoded bodies, in the order the tokens were given
+     */
+    public <T> Flux<T> pushEach(RateLimits limit, Region region, Function<String, HttpClient.ResponseReceiver<?>> request, Function<ByteBuf, T> decoder) {
+        return Flux.fromIterable(keys)
+                .concatMap(key -> push(key, limit, region, request, decoder));
+    }
+
+    private <T> Mono<T> push(Key key, RateLimits limit, Region region, Function<String, HttpClient.ResponseReceiver<?>> request, Function<ByteBuf, T> decoder) {
+        key.outstanding.incrementAndGet(limit.ordinal());
+        return key.limiter.push(limit, region, request.apply(key.token), decoder)
+                .doFinally(signal -> key.outstanding.decrementAndGet(limit.ordinal()));
+    }
+
+    /**
+     * @return every key's capacity added up, the next free ticket is the earliest of any key. Empty if any key's
+     * limiter can't tell
+     */
+    public Optional<Capacity> getCapacity(RateLimits limit, Region region) {
+        int available = 0;
+        int queued = 0;
+        Instant nextFree = null;
+        for(Key key: keys) {
+            Capacity capacity = key.limiter.getCapacity(limit, region).orElse(null);
+            if(capacity == null) return Optional.empty();
+            available += capacity.getAvailable();
+            queued += capacity.getQueued();
+            if(nextFree == null || capacity.getNextFree().isBefore(nextFree)) nextFree = capacity.getNextFree();
+        }
+        return Optional.of(new Capacity(available, queued, nextFree));
+    }
+
+    /**
+     * Requests are spread evenly over the keys, so this is the slowest key's estimate for its share. Empty if any key's
+     * limiter can't tell
+     */
+    public Optional<Duration> estimate(RateLimits limit, Region region, int requests) {
+        int share = (requests + keys.size() - 1) / keys.size();
+        Duration slowest = Duration.ZERO;
+        for(Key key: keys) {
+            Duration estimate = key.limiter.estimate(limit, region, share).orElse(null);
+            if(estimate == null) return Optional.empty();
+            if(estimate.compareTo(slowest) > 0) slowest = estimate;
+        }
+        return Optional.of(slowest);
+    }
+
+    private Key pick(RateLimits limit) {
+        if(keys.size() == 1) return keys.get(0);
+
+        //start somewhere different every time so ties are spread round robin
+        int start = Math.floorMod(rotation.getAndIncrement(), keys.size());
+        Key best = null;
+        for(int i = 0; i < keys.size(); i++) {
+            Key key = keys.get((start + i) % keys.size());
+            if(best == null || key.outstanding.get(limit.ordinal()) < best.outstanding.get(limit.ordinal())) {
+                best = key;
+            }
+        }
+        return best;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Disposes every key's limiter
+     */
+    public void dispose() {
+        for(Key key: keys) {
+            key.limiter.dispose();
+        }
+    }
+
+    private static class Key {
+        private final String token;
+        private final Ratelimiter limiter;
+        private final AtomicIntegerArray outstanding = new AtomicIntegerArray(RateLimits.values().length);
+
+        private Key(String token, Ratelimiter limiter) {
+            this.token = token;
+            this.limiter = limiter;
+        }
+    }
+}
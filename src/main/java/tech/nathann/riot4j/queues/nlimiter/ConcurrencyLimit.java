@@ -0,0 +1,163 @@
+package tech.nathann.riot4j.queues.nlimiter;
+
+import io.netty.handler.timeout.ReadTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import tech.nathann.riot4j.exceptions.RateLimitedException;
+import tech.nathann.riot4j.exceptions.RetryableException;
+import tech.nathann.riot4j.queues.LatencyRecorder;
+
+import java.net.ConnectException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps how many calls to one region's host are in flight at once, separate from rate limit tickets. The cap follows
+ * latency Vegas style: every call compares its latency to the fastest we've seen, calls that took much longer mean they
+ * queued on riot's side so the cap shrinks in proportion, calls near the fastest let it grow by its square root. Timeouts
+ * and 5xx cut it by a tenth. When riot slows down the extra calls wait here instead of piling up connections there
+ */
+public class ConcurrencyLimit {
+    private static final Logger log = LoggerFactory.getLogger(ConcurrencyLimit.class);
+
+    private static final int MIN = 1;
+    private static final int MAX = 256; //what the flatMap stages used to allow
+    private static final double TOLERANCE = 2; //calls slower than this many times the fastest are a sign of overload
+    private static final double BACKOFF = 0.9;
+    private static final double SMOOTHING = 0.2; //how far one sample moves the limit toward what it suggests
+    private static final int PROBE_INTERVAL = 1000; //samples before the fastest latency is measured again
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Queue<Sinks.Empty<Void>> waiting = new ConcurrentLinkedQueue<>();
+    private final LatencyRecorder latency = new LatencyRecorder();
+
+    private volatile double limit = 20;
+    //guarded by this
+    private long fastest = Long.MAX_VALUE;
+    private long fastestThisProbe = Long.MAX_VALUE;
+    private int samples = 0;
+    private long lastBackoff = 0;
+
+    /**
+     * Runs a call once there's room for it, and learns from how long it took. A call that completes empty never went
+     * out, so it isn't sampled
+     */
+    public <T> Mono<T> run(Mono<T> call) {
+        return acquire().then(Mono.defer(() -> {
+            long start = System.nanoTime();
+            return call
+                    .doOnNext(value -> sample(System.nanoTime() - start, false))
+                    .doOnError(error -> {
+                        if(isOverload(error)) sample(System.nanoTime() - start, true);
+                    })
+                    .doFinally(signal -> release());
+        }));
+    }
+
+    //only errors that mean riot or the way there is struggling. Anything else, a 404 or a body we couldn't parse, says
+    //nothing about load and is left out of the samples
+    private static boolean isOverload(Throwable error) {
+        if(error instanceof RetryableException) return true; //5xx, and netty's timeouts once Request wraps them
+        if(error instanceof RateLimitedException) return ((RateLimitedException) error).getScope() == RateLimitedException.Scope.SERVICE;
+        return error instanceof TimeoutException || error instanceof ReadTimeoutException || error instanceof ConnectException;
+    }
+
+    private Mono<Void> acquire() {
+        return Mono.defer(() -> {
+            if(tryAcquire()) return Mono.empty();
+
+            Sinks.Empty<Void> gate = Sinks.empty();
+            waiting.offer(gate);
+            handOff(); //a call may have finished before we started waiting
+            return gate.asMono()
+                    .doOnCancel(() -> {
+                        if(!waiting.remove(gate)) release(); //it was already handed a slot
+                    });
+        });
+    }
+
+    private boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if(current >= (int) limit) return false;
+        } while(!inFlight.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private void release() {
+        inFlight.decrementAndGet();
+        handOff();
+    }
+
+    private void handOff() {
+        while(!waiting.isEmpty() && tryAcquire()) {
+            Sinks.Empty<Void> gate = waiting.poll();
+            if(gate == null) { //someone else took the waiter
+                inFlight.decrementAndGet();
+                return;
+            }
+            gate.tryEmitEmpty();
+        }
+    }
+
+    private synchronized void sample(long nanos, boolean overload) {
+        latency.recordNanos(nanos);
+
+        if(++samples >= PROBE_INTERVAL) { //forget old fastest calls, the route to riot may have changed
+            fastest = fastestThisProbe;
+            fastestThisProbe = Long.MAX_VALUE;
+            samples = 0;
+        }
+        if(!overload) {
+            fastest = Math.min(fastest, nanos);
+            fastestThisProbe = Math.min(fastestThisProbe, nanos);
+        }
+
+        double before = limit;
+        long now = System.nanoTime();
+        if(overload) {
+            //every call in flight during an outage fails, only the first of them counts
+            if(now - lastBackoff > nanos) {
+                limit = Math.max(MIN, before * BACKOFF);
+                lastBackoff = now;
+            }
+        }
+        else {
+            double gradient = Math.max(0.5, Math.min(1, TOLERANCE * fastest / (double) nanos));
+            double next = before * gradient + Math.sqrt(before); //the root is headroom to keep probing upward
+            if(inFlight.get() * 2 < before) next = Math.min(next, before); //don't grow a limit we aren't using
+            limit = Math.max(MIN, Math.min(MAX, before * (1 - SMOOTHING) + next * SMOOTHING));
+        }
+        if((int) before != (int) limit) log.debug("Concurrency limit {} -> {}", (int) before, (int) limit);
+        handOff();
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return how long calls took once they were let through, not counting the wait for a slot
+     */
+    public LatencyRecorder getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimit{" +
+                "limit=" + getLimit() +
+                ", inFlight=" + getInFlight() +
+                ", waiting=" + waiting.size() +
+                '}';
+    }
+}
@@ -2,90 +2,446 @@ package tech.nathann.riot4j.queues.nlimiter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
 import tech.nathann.riot4j.enums.regions.Region;
-import tech.nathann.riot4j.queues.FailureStrategies;
+import tech.nathann.riot4j.queues.OverflowPolicy;
+import tech.nathann.riot4j.queues.Priority;
 import tech.nathann.riot4j.queues.RateLimits;
+import tech.nathann.riot4j.queues.Tenant;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
+/**
+ * Hands out {@link Ticket}s for one rate limit in one region. Queued requests are served by {@link Priority}, then by
+ * {@link tech.nathann.riot4j.queues.Tenant} weight, then in order, by a single drain loop that runs on whichever thread
+ * pushes a request, releases a ticket or wakes up from the {@link LimiterTimer}, so there is never more than one
+ * scheduled wakeup per dispenser no matter how many requests are waiting
+ */
 public class Dispenser {
     private static final Logger log = LoggerFactory.getLogger(Dispenser.class);
 
     private final RateLimits limit;
     private final Region region;
+    private final WindowStore store;
 
-    private final Duration reset;
-    private final Mono<Instant>[] tickets;
+    //replaced as a whole when riot tells us about different limits, a ticket must be free in every window
+    private volatile List<TicketWindow> windows;
+    private volatile String lastHeader = null;
+    private volatile long pausedUntil = 0; //epoch milli riot told us to back off until
+    private volatile Pacer pacer = null; //null sends a whole window as fast as it frees up
+    private volatile int drift = 0;
+    private final AtomicLong reserved = new AtomicLong();
 
-    private final Sinks.Many<Wrap> queue = Sinks.many().unicast().onBackpressureBuffer();
+    //one queue per priority, the drain loop always serves the highest priority lane that has anything waiting
+    private final List<FairQueue<TicketedRequest<?>>> lanes = new ArrayList<>();
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private volatile int capacity = Integer.MAX_VALUE;
+    private volatile OverflowPolicy overflow = OverflowPolicy.REJECT_NEWEST;
+    private final Queue<Sinks.Empty<Void>> parked = new ConcurrentLinkedQueue<>(); //producers waiting for room
+
+    //only touched inside the drain loop
+    private Disposable wakeup = null;
+    private long wakeupAt = Long.MAX_VALUE;
 
     public Dispenser(RateLimits limit, Region region) {
+        this(limit, region, List.of(RateWindow.of(limit)));
+    }
+
+    public Dispenser(RateLimits limit, Region region, List<RateWindow> windows) {
+        this(limit, region, windows, WindowStore.heap());
+    }
+
+    public Dispenser(RateLimits limit, Region region, List<RateWindow> windows, WindowStore store) {
         this.limit = limit;
         this.region = region;
-        this.reset = limit.getLength();
-
-        tickets = new Mono[limit.getCount()];
-        Arrays.fill(tickets, Mono.just(Instant.EPOCH));
-
-        queue.asFlux()
-                .concatMap(wrap ->
-                        getTicket(wrap)
-                                .doOnNext(fin -> wrap.response.emitValue(fin, FailureStrategies.RETRY_ON_SERIALIZED))
-                ).subscribe();
-
-        log.info("Created bucket: " + this);
-    }
-
-    private int position = 0;
-    private Mono<TicketedRequest> getTicket(Wrap wrap) {
-        log.debug("Ticket requested from " + limit + ", " + region);
-
-        int pos = position % tickets.length;
-        Mono<Instant> lockMono = tickets[pos];
-        TicketedRequest request = wrap.request;
-
-        return lockMono
-                .flatMap(lock -> {
-                    log.debug("Lock acquired from " + limit + ", " + region);
-
-                    Duration timePassed = Duration.between(lock, Instant.now());
-                    boolean isFree = reset.compareTo(timePassed) < 0;
-                    if(isFree) {
-                        log.trace("Ticket at position " + pos + " is free!");
-                        tickets[pos] = request.getLock();
-                        position++;
-                        return Mono.just(request);
-                    } else {
-                        Duration delay = reset.minus(timePassed);
-                        if(delay.compareTo(Duration.ofSeconds(1)) > 0) //we only log if delay is over 1 second
-                            log.warn("Ticket at pos " + pos + " for  " + this + " isn't free, delaying " + delay);
-                        return Mono.delay(delay)
-                                .flatMap(fin -> getTicket(wrap));
+        this.store = store;
+
+        List<TicketWindow> opened = new ArrayList<>();
+        for(int i = 0; i < windows.size(); i++) {
+            opened.add(new TicketWindow(windows.get(i), store.open(limit, region, i, windows.get(i))));
+        }
+        this.windows = opened;
+
+        for(int i = 0; i < Priority.values().length; i++) {
+            lanes.add(new FairQueue<>());
+        }
+
+        log.info("Created bucket: {}", this);
+    }
+
+    /**
+     * Takes a ticket without waiting
+     * @return a ticket that must be released once its request is done, or null if no ticket is free right now
+     */
+    public Ticket tryAcquire() {
+        return tryAcquire(System.currentTimeMillis());
+    }
+
+    private Ticket tryAcquire(long now) {
+        if(pausedUntil > now) return null;
+        Pacer paced = pacer;
+        if(paced != null && paced.freeAt() > now) return null;
+        List<TicketWindow> current = windows;
+        for(TicketWindow window: current) {
+            if(window.freeAt() > now) return null;
+        }
+        long claimed = paced == null ? -1 : paced.tryClaim(now);
+        if(paced != null && claimed < 0) return null;
+
+        int[] slots = new int[current.size()];
+        for(int i = 0; i < slots.length; i++) {
+            int slot = current.get(i).tryClaim(now);
+            if(slot < 0) { //lost a race, give back what we took so far
+                for(int j = 0; j < i; j++) {
+                    current.get(j).rollback(slots[j], now);
+                }
+                if(paced != null) paced.rollback(claimed, now);
+                return null;
+            }
+            slots[i] = slot;
+        }
+        return new Ticket(this, current, slots, now, paced, claimed);
+    }
+
+    /**
+     * @return the earliest instant a ticket could be taken, ignoring anything already queued. May be in the past
+     */
+    public Instant acquireAt() {
+        return Instant.ofEpochMilli(freeAt());
+    }
+
+    /**
+     * @return tickets that could be taken right now without waiting, 0 while paused
+     */
+    public int available() {
+        long now = System.currentTimeMillis();
+        if(pausedUntil > now) return 0;
+        Pacer paced = pacer;
+        int available = paced == null ? Integer.MAX_VALUE : paced.available(now);
+        for(TicketWindow window: windows) {
+            available = Math.min(available, window.available(now));
+        }
+        return available;
+    }
+
+    private long freeAt() {
+        Pacer paced = pacer;
+        long freeAt = paced == null ? pausedUntil : Math.max(pausedUntil, paced.freeAt());
+        for(TicketWindow window: windows) {
+            freeAt = Math.max(freeAt, window.freeAt());
+        }
+        return freeAt;
+    }
+
+    /**
+     * Guesses when a request pushed now would get its ticket, counting everything queued at a higher priority and
+     * its tenant's share of its own lane
+     * @return epoch milli, never before now
+     */
+    long estimateFreeAt(Priority priority, Tenant tenant, long now) {
+        return estimateFreeAt(priority, tenant, 0, now);
+    }
+
+    /**
+     * @param extra requests pushed along with it that go first
+     */
+    long estimateFreeAt(Priority priority, Tenant tenant, long extra, long now) {
+        long ahead = lanes.get(priority.ordinal()).ahead(tenant) + extra;
+        for(int i = 0; i < priority.ordinal(); i++) {
+            ahead += lanes.get(i).size();
+        }
+
+        long freeAt = Math.max(now, pausedUntil);
+        Pacer paced = pacer;
+        if(paced != null) freeAt = Math.max(freeAt, paced.estimateFreeAt(ahead, now));
+        for(TicketWindow window: windows) {
+            freeAt = Math.max(freeAt, window.estimateFreeAt(ahead, now));
+        }
+        return freeAt;
+    }
+
+    void drain() {
+        if(wip.getAndIncrement() != 0) return;
+
+        int missed = 1;
+        do {
+            FairQueue<TicketedRequest<?>> lane;
+            TicketedRequest<?> head;
+            while((lane = nextLane()) != null && (head = lane.peek()) != null) {
+                long now = System.currentTimeMillis();
+                if(overflow == OverflowPolicy.DROP_OLDEST && getQueued() > capacity) {
+                    dropOldest();
+                    continue;
+                }
+                if(head.getDeadline() < now) { //nobody wants the answer any more, don't spend a ticket on it
+                    expire(lane, head);
+                    continue;
+                }
+
+                Ticket ticket = tryAcquire(now);
+                if(ticket == null) {
+                    long freeAt = freeAt();
+                    if(freeAt <= now) continue; //lost a race with a resize or tryAcquire, try again
+                    if(freeAt > head.getDeadline()) {
+                        expire(lane, head);
+                        continue;
                     }
-                });
+                    schedule(freeAt, now);
+                    break;
+                }
+
+                if(!lane.poll(head, true)) { //cancelled after we peeked it
+                    ticket.cancel();
+                    continue;
+                }
+                unpark();
+                head.granted(ticket); //moves it on to its next dispenser or sends it, still on this thread
+            }
+            missed = wip.addAndGet(-missed);
+        } while(missed != 0);
     }
 
-    public Mono<TicketedRequest> pushTicket(TicketedRequest request) {
-        Wrap temp = new Wrap(request);
-        queue.emitNext(temp, FailureStrategies.RETRY_ON_SERIALIZED);
-        return temp.response.asMono();
+    private void expire(FairQueue<TicketedRequest<?>> lane, TicketedRequest<?> head) {
+        if(!lane.poll(head, false)) return;
+        unpark();
+        head.expire();
     }
 
-    public RateLimits getLimit() {
-        return limit;
+    //background requests are shed before anything more important
+    private void dropOldest() {
+        for(int i = lanes.size() - 1; i >= 0; i--) {
+            TicketedRequest<?> oldest = lanes.get(i).pollOldest(TicketedRequest::getQueuedAt);
+            if(oldest != null) {
+                oldest.shed(this);
+                return;
+            }
+        }
+    }
+
+    /**
+     * A caller gave up on a queued request, it leaves right away instead of when it reaches the front
+     */
+    void remove(TicketedRequest<?> request) {
+        if(!lanes.get(request.getPriority().ordinal()).remove(request.getTenant(), request)) return; //already out
+        unpark();
+    }
+
+    /**
+     * A ticket was given back unsent, so its pacing spot is free again too. Only if the pacer it was claimed through is
+     * still the one pacing, a ticket from before pacing started or from an older pacer never took a spot in this one
+     * @param from the pacer the ticket was claimed through, null if it wasn't paced
+     * @param claimed what that pacer's claim returned
+     */
+    void giveBack(Pacer from, long claimed) {
+        Pacer paced = pacer;
+        if(paced != null && paced == from) paced.rollback(claimed, System.currentTimeMillis());
+        drain();
     }
 
-    private static class Wrap {
-        private final Sinks.One<TicketedRequest> response = Sinks.one();
-        private final TicketedRequest request;
+    //every request that leaves the queue makes room for exactly one parked producer
+    private void unpark() {
+        Sinks.Empty<Void> gate = parked.poll();
+        if(gate != null) gate.tryEmitEmpty();
+    }
+
+    private FairQueue<TicketedRequest<?>> nextLane() {
+        for(FairQueue<TicketedRequest<?>> lane: lanes) {
+            if(lane.size() > 0) return lane;
+        }
+        return null;
+    }
+
+    private void schedule(long freeAt, long now) {
+        long delay = Math.min(freeAt - now, store.maxSleep());
+        if(wakeup != null && wakeupAt > now && wakeupAt <= now + delay) return; //a pending earlier wakeup will cover it
+
+        if(delay > 1000) //we only log if delay is over 1 second
+            log.warn("Ticket for " + this + " isn't free, delaying " + delay + "ms");
 
-        public Wrap(TicketedRequest request) {
-            this.request = request;
+        if(wakeup != null) wakeup.dispose();
+        wakeupAt = now + delay;
+        wakeup = LimiterTimer.schedule(this::drain, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Spaces tickets evenly over the slowest window instead of handing out a whole window at once
+     * @param burst tickets that may still go back to back after a quiet spell, 0 turns pacing off
+     */
+    public void pace(int burst) {
+        pacer = burst > 0 ? new Pacer(burst, getWindows()) : null;
+        log.info("Pacing {} with {}", this, pacer);
+        drain();
+    }
+
+    /**
+     * Stops handing out tickets for a while, only this limit in this region is affected. Requests keep queueing and
+     * are served in order once the pause is over
+     */
+    public void pause(Duration duration) {
+        long until = System.currentTimeMillis() + duration.toMillis();
+        synchronized (this) {
+            if(until <= pausedUntil) return;
+            pausedUntil = until;
         }
+        log.warn("Paused " + this + " for " + duration);
+        drain(); //reschedules the wakeup past the pause
+    }
+
+    /**
+     * Resizes this dispenser to match a rate limit header. Headers that match the current windows are ignored, so this
+     * is cheap to call on every response
+     * @param header a value such as "20:1,100:120"
+     */
+    public void resize(String header) {
+        if(header == null || header.equals(lastHeader)) return;
+        lastHeader = header;
+
+        List<RateWindow> next = RateWindow.parse(header);
+        if(next.isEmpty() || next.equals(getWindows())) return;
+
+        synchronized (this) {
+            List<TicketWindow> current = windows;
+            List<TicketWindow> resized = new ArrayList<>();
+            for(int i = 0; i < next.size(); i++) {
+                //riot sends windows in the same order every time, so window i replaces our old window i
+                WindowState state = store.open(limit, region, i, next.get(i));
+                if(i < current.size()) resized.add(current.get(i).resize(next.get(i), state));
+                else resized.add(new TicketWindow(next.get(i), state));
+            }
+            windows = resized;
+            Pacer paced = pacer;
+            if(paced != null) paced.resize(next);
+        }
+        log.info("Resized {} to {}", this, next);
+        drain();
+    }
+
+    /**
+     * Compares a rate limit count header with our own windows. Calls riot counted that we don't know about (another
+     * process on the key, or our clock running ahead of riot's) are reserved so we don't run into a 429 over them
+     * @param header a value such as "3:1,45:120"
+     */
+    public void reconcile(String header) {
+        List<RateWindow> counts = RateWindow.parse(header);
+        if(counts.isEmpty()) return;
+
+        long now = System.currentTimeMillis();
+        int missing = 0;
+        synchronized (this) { //two responses that saw the same gap must not both fill it
+            for(TicketWindow window: windows) {
+                for(RateWindow count: counts) {
+                    if(!count.getLength().equals(window.getWindow().getLength())) continue;
+                    int gap = count.getCount() - window.inUse(count.getCount(), now);
+                    missing = Math.max(missing, gap);
+                    if(gap > 0) reserved.addAndGet(window.reserve(gap, now));
+                }
+            }
+        }
+        if(missing > 0 && drift == 0) log.warn(this + " is " + missing + " calls behind riot's count, reserving them");
+        drift = missing;
+    }
+
+    /**
+     * @return calls riot counted in a window that this dispenser didn't, as of the last response. 0 means we agree or
+     * are stricter, usually because of calls still in flight
+     */
+    public int getDrift() {
+        return drift;
+    }
+
+    /**
+     * @return slots taken up so far for calls riot counted that we didn't make
+     */
+    public long getReserved() {
+        return reserved.get();
+    }
+
+    public List<RateWindow> getWindows() {
+        return windows.stream()
+                .map(TicketWindow::getWindow)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Limits how many requests may wait in this dispenser. The limit is soft, producers that race each other may
+     * briefly go over it by a few
+     */
+    public void bound(int capacity, OverflowPolicy overflow) {
+        this.capacity = capacity;
+        this.overflow = overflow;
+        drain();
+        while(getQueued() < capacity && !parked.isEmpty()) unpark();
+    }
+
+    boolean isBackpressured() {
+        return overflow == OverflowPolicy.BACKPRESSURE;
+    }
+
+    /**
+     * @return completes once there's room to push a request, right away unless this dispenser applies
+     * {@link OverflowPolicy#BACKPRESSURE} and is full
+     */
+    public Mono<Void> admit() {
+        return Mono.defer(() -> {
+            if(overflow != OverflowPolicy.BACKPRESSURE || (getQueued() < capacity && parked.isEmpty())) return Mono.empty();
+
+            Sinks.Empty<Void> gate = Sinks.empty();
+            parked.offer(gate);
+            if(getQueued() < capacity) unpark(); //room freed up before we parked
+            return gate.asMono()
+                    .doOnCancel(() -> parked.remove(gate))
+                    .publishOn(Schedulers.parallel()); //unparked from inside the pipeline, which a new push can't re-enter
+        });
+    }
+
+    /**
+     * Queues a request for a ticket. Once it has one the drain loop hands it straight to
+     * {@link TicketedRequest#granted(Ticket)}, so nothing is allocated per request on the way through
+     */
+    void offer(TicketedRequest<?> request) {
+        log.trace("Ticket requested from {}, {}", limit, region); //every push passes here, debug would log all of them
+        if(request.isDisposed()) return; //cancelled on its way here
+        if(overflow == OverflowPolicy.REJECT_NEWEST && getQueued() >= capacity) {
+            request.shed(this);
+            return;
+        }
+
+        request.queued(this);
+        lanes.get(request.getPriority().ordinal()).offer(request.getTenant(), request, request.isFront());
+        if(request.isDisposed()) remove(request); //cancelled before it could be found here
+        drain();
+    }
+
+    /**
+     * @return requests waiting for a ticket in every lane
+     */
+    public int getQueued() {
+        int queued = 0;
+        for(FairQueue<TicketedRequest<?>> lane: lanes) {
+            queued += lane.size();
+        }
+        return queued;
+    }
+
+    public RateLimits getLimit() {
+        return limit;
+    }
+
+    public Region getRegion() {
+        return region;
     }
 
     @Override
@@ -95,4 +451,4 @@ public class Dispenser {
                 ", region=" + region +
                 '}';
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,153 @@
+package tech.nathann.riot4j.queues.nlimiter;
+
+import tech.nathann.riot4j.queues.Tenant;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+/**
+ * Deficit round robin over one queue per {@link Tenant}. Every ticket costs the same, so a tenant's turn is simply its
+ * weight in tickets before the next waiting tenant is served. Any thread may offer or remove, but peek and poll must
+ * only be called from one thread at a time (the drain loop of a {@link Dispenser})
+ */
+class FairQueue<T> {
+    private final Map<String, Flow<T>> flows = new ConcurrentHashMap<>();
+    private final Queue<Flow<T>> active = new ConcurrentLinkedQueue<>(); //tenants with something waiting, in turn order
+    private final AtomicInteger size = new AtomicInteger(); //queue size is O(n)
+
+    void offer(Tenant tenant, T value) {
+        offer(tenant, value, false);
+    }
+
+    /**
+     * @param first whether the value goes ahead of everything its tenant has queued
+     */
+    void offer(Tenant tenant, T value, boolean first) {
+        Flow<T> flow = flows.computeIfAbsent(tenant.getName(), key -> new Flow<>());
+        flow.weight = tenant.getWeight(); //latest weight wins
+        flow.size.incrementAndGet();
+        size.incrementAndGet();
+        if(first) flow.queue.offerFirst(value);
+        else flow.queue.offer(value);
+        if(flow.scheduled.compareAndSet(false, true)) active.offer(flow);
+    }
+
+    /**
+     * @return the next value in turn, or null if nothing is waiting
+     */
+    T peek() {
+        Flow<T> flow;
+        while((flow = active.peek()) != null) {
+            T head = flow.queue.peek();
+            if(head == null) {
+                retire(flow);
+                continue;
+            }
+            if(flow.deficit == 0) flow.deficit = flow.weight; //start of its turn
+            return head;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the value returned by the last {@link #peek()}
+     * @param charge whether it used up part of its tenant's turn, values that are dropped unsent don't
+     * @return false if the value was removed by {@link #remove(Tenant, Object)} in the meantime
+     */
+    boolean poll(T head, boolean charge) {
+        Flow<T> flow = active.peek();
+        if(flow == null || !flow.queue.remove(head)) return false; //head is first, so this doesn't scan
+        flow.size.decrementAndGet();
+        size.decrementAndGet();
+
+        if(charge && --flow.deficit == 0) { //turn is over, go to the back
+            active.poll();
+            if(flow.queue.isEmpty()) unschedule(flow);
+            else active.offer(flow);
+        }
+        return true;
+    }
+
+    /**
+     * Takes a value out wherever it is queued, from any thread. Values are usually cancelled in the order they were
+     * offered, so they are found near the front
+     * @return false if the value was already polled or removed
+     */
+    boolean remove(Tenant tenant, T value) {
+        Flow<T> flow = flows.get(tenant.getName());
+        if(flow == null || !flow.queue.remove(value)) return false;
+        flow.size.decrementAndGet();
+        size.decrementAndGet();
+        return true; //an emptied flow is retired the next time it comes up in peek
+    }
+
+    /**
+     * Removes the value that has waited longest in any tenant's queue
+     * @param age when a value was queued, smaller is older
+     * @return the removed value, or null if nothing is waiting
+     */
+    T pollOldest(ToLongFunction<T> age) {
+        Flow<T> oldest = null;
+        long oldestAge = Long.MAX_VALUE;
+        for(Flow<T> flow: flows.values()) {
+            T head = flow.queue.peek();
+            if(head != null && (oldest == null || age.applyAsLong(head) < oldestAge)) {
+                oldest = flow;
+                oldestAge = age.applyAsLong(head);
+            }
+        }
+        if(oldest == null) return null;
+
+        T head = oldest.queue.peek(); //an emptied flow is retired the next time it comes up in peek
+        if(head == null || !oldest.queue.remove(head)) return null; //cancelled in the meantime
+        oldest.size.decrementAndGet();
+        size.decrementAndGet();
+        return head;
+    }
+
+    private void retire(Flow<T> flow) {
+        active.poll();
+        flow.deficit = 0;
+        unschedule(flow);
+    }
+
+    private void unschedule(Flow<T> flow) {
+        flow.scheduled.set(false);
+        //an offer may have seen scheduled still set before we cleared it
+        if(!flow.queue.isEmpty() && flow.scheduled.compareAndSet(false, true)) active.offer(flow);
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return roughly how many values are served before a new value of this tenant, every other tenant gets its share
+     * of the turns until then
+     */
+    long ahead(Tenant tenant) {
+        Flow<T> own = flows.get(tenant.getName());
+        long rounds = own == null ? 0 : own.size.get() / tenant.getWeight(); //full turns we wait for
+        long ahead = own == null ? 0 : own.size.get();
+        for(Flow<T> flow: flows.values()) {
+            if(flow == own) continue;
+            ahead += Math.min(flow.size.get(), (rounds + 1) * flow.weight);
+        }
+        return ahead;
+    }
+
+    private static class Flow<T> {
+        private final Deque<T> queue = new ConcurrentLinkedDeque<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicInteger size = new AtomicInteger();
+        private volatile int weight = 1;
+        private int deficit = 0; //only touched by the draining thread
+    }
+}
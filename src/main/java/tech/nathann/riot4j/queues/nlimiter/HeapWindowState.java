@@ -0,0 +1,44 @@
+package tech.nathann.riot4j.queues.nlimiter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Window state that lives in this process only
+ */
+class HeapWindowState extends WindowState {
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] slots;
+    private final AtomicLong position = new AtomicLong();
+
+    HeapWindowState(int size) {
+        this.slots = new long[size];
+    }
+
+    @Override
+    int size() {
+        return slots.length;
+    }
+
+    @Override
+    long position() {
+        return position.get();
+    }
+
+    @Override
+    boolean casPosition(long expected, long next) {
+        return position.compareAndSet(expected, next);
+    }
+
+    @Override
+    long get(int index) {
+        return (long) SLOTS.getVolatile(slots, index);
+    }
+
+    @Override
+    boolean cas(int index, long expected, long next) {
+        return SLOTS.compareAndSet(slots, index, expected, next);
+    }
+}
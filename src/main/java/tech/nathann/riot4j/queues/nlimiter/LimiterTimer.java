@@ -0,0 +1,91 @@
+package tech.nathann.riot4j.queues.nlimiter;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One hashed wheel shared by every limiter in the process for dispenser wakeups and retry sleeps. Adding or cancelling
+ * a timer is O(1) no matter how many are pending, where the parallel scheduler keeps a heap per worker. The wheel thread
+ * only queues what's due, and one parallel task per tick runs the lot, so the wheel thread itself never runs limiter code.
+ * Timers fire up to one tick late, which only ever makes the limiter more careful
+ */
+public class LimiterTimer {
+    private static final Logger log = LoggerFactory.getLogger(LimiterTimer.class);
+    private static final long TICK = 10; //ms
+    private static final HashedWheelTimer wheel = new HashedWheelTimer(runnable -> {
+        Thread thread = new Thread(runnable, "riot4j-timer");
+        thread.setDaemon(true);
+        return thread;
+    }, TICK, TimeUnit.MILLISECONDS, 512);
+    private static final Queue<Runnable> due = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean handedOff = new AtomicBoolean();
+
+    private LimiterTimer() {
+    }
+
+    /**
+     * Runs a task on the parallel scheduler once the delay is over
+     * @return disposing it cancels the task if it hasn't run yet
+     */
+    public static Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = wheel.newTimeout(fired -> fire(task), delay, unit);
+        return new Disposable() {
+            @Override
+            public void dispose() {
+                timeout.cancel();
+            }
+
+            @Override
+            public boolean isDisposed() {
+                return timeout.isCancelled() || timeout.isExpired();
+            }
+        };
+    }
+
+    private static void fire(Runnable task) {
+        due.offer(task);
+        if(handedOff.compareAndSet(false, true)) Schedulers.parallel().schedule(LimiterTimer::runDue);
+    }
+
+    private static void runDue() {
+        do {
+            Runnable task;
+            while((task = due.poll()) != null) {
+                try {
+                    task.run();
+                } catch(Throwable e) {
+                    log.error("Timer task failed", e);
+                }
+            }
+            handedOff.set(false);
+        } while(!due.isEmpty() && handedOff.compareAndSet(false, true)); //queued after the last poll but before the reset
+    }
+
+    /**
+     * Like {@link Mono#delay(Duration)} without the value
+     */
+    public static Mono<Void> delay(Duration delay) {
+        return Mono.create(sink -> {
+            Disposable timer = schedule(sink::success, delay.toNanos(), TimeUnit.NANOSECONDS);
+            sink.onCancel(timer);
+        });
+    }
+
+    /**
+     * @return timers waiting to fire across every limiter
+     */
+    public static long pending() {
+        return wheel.pendingTimeouts();
+    }
+}
@@ -0,0 +1,62 @@
+package tech.nathann.riot4j.queues.nlimiter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Window state in a memory mapped file, so every process that maps the same file draws from the same window. The
+ * first long of the file is the position and every long after it is a slot. New files are zero filled, which is the
+ * same as a fresh {@link HeapWindowState}
+ */
+class MappedWindowState extends WindowState {
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final MappedByteBuffer buffer;
+    private final int size;
+
+    MappedWindowState(Path file, int size) {
+        this.size = size;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //mapping past the end of the file grows it, so whoever maps first sizes it and everyone else just maps it
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (size + 1L) * Long.BYTES);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not map rate limit window " + file, e);
+        }
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    long position() {
+        return (long) LONGS.getVolatile(buffer, 0);
+    }
+
+    @Override
+    boolean casPosition(long expected, long next) {
+        return LONGS.compareAndSet(buffer, 0, expected, next);
+    }
+
+    @Override
+    long get(int index) {
+        return (long) LONGS.getVolatile(buffer, offset(index));
+    }
+
+    @Override
+    boolean cas(int index, long expected, long next) {
+        return LONGS.compareAndSet(buffer, offset(index), expected, next);
+    }
+
+    private static int offset(int index) {
+        return (index + 1) * Long.BYTES;
+    }
+}
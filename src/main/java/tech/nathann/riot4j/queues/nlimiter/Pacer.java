@@ -0,0 +1,97 @@
+package tech.nathann.riot4j.queues.nlimiter;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads the tickets of a {@link Dispenser} evenly instead of letting a whole window go at once, using the generic cell
+ * rate algorithm. Tickets are spaced by the window's length over its count (the slowest window when there are several)
+ * and up to burst of them may go back to back after a quiet spell. Windows are still enforced on top of this, pacing
+ * only ever holds tickets back
+ */
+class Pacer {
+    private final int burst;
+    //theoretical arrival time of the next ticket, in epoch micros so fast limits don't round down to no spacing
+    private final AtomicLong arrival = new AtomicLong();
+    private volatile long interval;
+
+    Pacer(int burst, List<RateWindow> windows) {
+        this.burst = burst;
+        resize(windows);
+    }
+
+    void resize(List<RateWindow> windows) {
+        long slowest = 0;
+        for(RateWindow window: windows) {
+            slowest = Math.max(slowest, window.getLength().toNanos() / 1000 / window.getCount());
+        }
+        interval = slowest;
+    }
+
+    private long tolerance() {
+        return (burst - 1) * interval;
+    }
+
+    /**
+     * @return epoch milli the next ticket may go out
+     */
+    long freeAt() {
+        return ceilMillis(arrival.get() - tolerance());
+    }
+
+    /**
+     * @return epoch milli a ticket with ahead others in front of it may go out
+     */
+    long estimateFreeAt(long ahead, long now) {
+        long next = Math.max(arrival.get() - tolerance(), now * 1000);
+        return ceilMillis(next + ahead * interval);
+    }
+
+    /**
+     * @return tickets that may go back to back from now, at most the burst
+     */
+    int available(long now) {
+        long slack = now * 1000 - (arrival.get() - tolerance());
+        if(slack < 0) return 0;
+        return interval == 0 ? burst : (int) Math.min(burst, slack / interval + 1);
+    }
+
+    /**
+     * @return the arrival time this claim moved the pacer to, which {@link #rollback(long, long)} needs, or -1 if the
+     * ticket may not go out yet
+     */
+    long tryClaim(long now) {
+        long micros = now * 1000;
+        long current;
+        long next;
+        do {
+            current = arrival.get();
+            if(current - tolerance() > micros) return -1;
+            next = Math.max(current, micros) + interval;
+        } while(!arrival.compareAndSet(current, next));
+        return next;
+    }
+
+    /**
+     * Gives back a claim that never went out. Only a spot that's still ahead of now is freed, and never further back
+     * than now. A spot that already passed can't be used anymore, giving it back would add to the burst
+     * @param claimed what {@link #tryClaim(long)} returned for it
+     */
+    void rollback(long claimed, long now) {
+        long micros = now * 1000;
+        if(claimed <= micros) return;
+        arrival.getAndUpdate(current -> Math.max(micros, current - interval));
+    }
+
+    private static long ceilMillis(long micros) {
+        return Math.floorDiv(micros + 999, 1000);
+    }
+
+    @Override
+    public String toString() {
+        return "Pacer{" +
+                "burst=" + burst +
+                ", interval=" + interval + "us" +
+                '}';
+    }
+}
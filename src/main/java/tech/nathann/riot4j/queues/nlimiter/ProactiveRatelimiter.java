@@ -1,79 +1,331 @@
 package tech.nathann.riot4j.queues.nlimiter;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaders;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.Sinks;
 import reactor.netty.http.client.HttpClient;
 import tech.nathann.riot4j.enums.regions.Region;
-import tech.nathann.riot4j.queues.FailureStrategies;
+import tech.nathann.riot4j.exceptions.DeadlineExceededException;
+import tech.nathann.riot4j.queues.Capacity;
+import tech.nathann.riot4j.queues.Deadline;
+import tech.nathann.riot4j.queues.LatencyRecorder;
+import tech.nathann.riot4j.queues.OverflowPolicy;
+import tech.nathann.riot4j.queues.Priority;
 import tech.nathann.riot4j.queues.RateLimits;
 import tech.nathann.riot4j.queues.Ratelimiter;
+import tech.nathann.riot4j.queues.RetryBudget;
+import tech.nathann.riot4j.queues.Tenant;
 
 import java.time.Duration;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class ProactiveRatelimiter implements Ratelimiter {
     private static final Logger log = LoggerFactory.getLogger(ProactiveRatelimiter.class);
 
+    private final RateLimits masterLimit;
+    private final List<RateWindow> appWindows;
+    private final WindowStore store;
+
+    /**
+     * Riot enforces application limits per routing value (na, eu, americas...), so app level dispensers are keyed by
+     * region the same way method buckets are. Both the master and secondary limit are windows of the same dispenser
+     */
+    private final Map<Region, Dispenser> apps = new ConcurrentHashMap<>();
+
     private final Map<RateLimits, Map<Region, Dispenser>> buckets;
-    private final Sinks.Many<TicketedRequest> ingest = Sinks.many().unicast().onBackpressureBuffer();
+    private final Map<Priority, LatencyRecorder> latency = new EnumMap<>(Priority.class);
+    private final Map<Dispenser, Consumer<HttpHeaders>> headerListeners = new ConcurrentHashMap<>(); //one per bucket, not per request
+    private final Map<String, LatencyRecorder> waits = new ConcurrentHashMap<>();
+    private final Map<RateLimits, Bound> bounds = new ConcurrentHashMap<>();
+    private final Map<RateLimits, Integer> pacing = new ConcurrentHashMap<>();
+    private volatile RetryBudget retryBudget = RetryBudget.standard();
+    private final Map<Region, ConcurrencyLimit> concurrency = new ConcurrentHashMap<>();
+    private volatile boolean disposed = false;
 
     public ProactiveRatelimiter(RateLimits masterLimit, RateLimits secondaryLimit, List<RateLimits> respectedLimits) {
-        Dispenser master = new Dispenser(masterLimit, null);
-        Dispenser secondary = new Dispenser(secondaryLimit, null);
+        this(masterLimit, secondaryLimit, respectedLimits, WindowStore.heap());
+    }
+
+    /**
+     * @param store where dispensers keep their windows, see {@link WindowStore#mapped(java.nio.file.Path)} to share
+     *              a budget with other processes. The limiter owns it and disposes it along with itself
+     */
+    public ProactiveRatelimiter(RateLimits masterLimit, RateLimits secondaryLimit, List<RateLimits> respectedLimits, WindowStore store) {
+        this.masterLimit = masterLimit;
+        this.appWindows = List.of(RateWindow.of(masterLimit), RateWindow.of(secondaryLimit));
+        this.store = store;
+        for(Priority priority: Priority.values()) {
+            latency.put(priority, new LatencyRecorder());
+        }
 
-        this.buckets = new HashMap<>();
+        this.buckets = new ConcurrentHashMap<>();
         for(RateLimits limit: respectedLimits) {
-            buckets.put(limit, new HashMap<>());
+            buckets.put(limit, new ConcurrentHashMap<>());
         }
+    }
+
+    //looked up on every push, so the capturing computeIfAbsent is only built the first time
+    private Dispenser getBucket(RateLimits limit, Region region) {
+        Map<Region, Dispenser> regions = buckets.get(limit); //get map<region, bucket>
+        Dispenser bucket = regions.get(region);
+        if(bucket != null) return bucket;
+        return regions.computeIfAbsent(region, key -> { //get actual bucket
+            Dispenser created = configured(new Dispenser(limit, region, List.of(RateWindow.of(limit)), store));
+            headerListeners.put(created, headers -> updateLimits(created, headers));
+            return created;
+        });
+    }
+
+    Dispenser getApp(Region region) {
+        Dispenser app = apps.get(region);
+        if(app != null) return app;
+        return apps.computeIfAbsent(region, key -> configured(new Dispenser(masterLimit, region, appWindows, store)));
+    }
+
+    //applies everything set for a limit before this dispenser existed
+    private Dispenser configured(Dispenser dispenser) {
+        Bound bound = bounds.get(dispenser.getLimit());
+        if(bound != null) dispenser.bound(bound.capacity, bound.overflow);
+        Integer burst = pacing.get(dispenser.getLimit());
+        if(burst != null) dispenser.pace(burst);
+        return dispenser;
+    }
+
+    private Map<Region, Dispenser> dispensers(RateLimits limit) {
+        return limit == masterLimit ? apps : buckets.getOrDefault(limit, Map.of());
+    }
 
-        /**
-         * The reasoning behind doing individual buckets before master buckets is that the majority of delayed tickets
-         * will spend time in their individual bucket, and during that time we don't want to be consuming master slots
-         */
-        ingest.asFlux()
-                .flatMap(request -> request.getBucket().pushTicket(request))//buckets
-                .flatMap(request -> master.pushTicket(request)) //masterA
-                .flatMap(request -> secondary.pushTicket(request)) //masterB
-                .concatMap(request -> delayRecur(request)) //stopper when we hit real ratelimit
-                .doOnNext(e -> log.debug("Ticketed leaving ratelimiter: " + e))
-                .flatMap(request -> request.getTry()) //evaluate values
-                .subscribe();
-    }
-
-    //block all requests on ratelimit
-    private Mono<TicketedRequest> delayRecur(TicketedRequest request) {
-        if(Instant.now().isBefore(future)) {
-            log.info("Delaying requests in ratelimiter");
-            return Mono.delay(Duration.between(Instant.now(), future))
-                    .flatMap(fin -> delayRecur(request));
+    /**
+     * Limits how many requests may wait in every region's dispenser of a limit, by default they are unbounded. Pass
+     * the master limit to bound the app level dispensers
+     */
+    public ProactiveRatelimiter bound(RateLimits limit, int capacity, OverflowPolicy overflow) {
+        bounds.put(limit, new Bound(capacity, overflow));
+        for(Dispenser dispenser: dispensers(limit).values()) {
+            dispenser.bound(capacity, overflow);
         }
-        return Mono.just(request);
+        return this;
+    }
+
+    /**
+     * Spreads the tickets of every region's dispenser of a limit evenly over its window, so callers get a steady stream
+     * instead of a whole window at once followed by a stall. Pass the master limit to pace the app level dispensers
+     * @param burst tickets that may still go back to back after a quiet spell, 0 turns pacing back off
+     */
+    public ProactiveRatelimiter pace(RateLimits limit, int burst) {
+        pacing.put(limit, burst);
+        for(Dispenser dispenser: dispensers(limit).values()) {
+            dispenser.pace(burst);
+        }
+        return this;
+    }
+
+    /**
+     * Replaces this limiter's own budget, pass the same budget to every limiter of a client to share it
+     */
+    public ProactiveRatelimiter retryBudget(RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+        return this;
+    }
+
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Disposes the window store, which saves a {@link WindowStore#snapshot(java.nio.file.Path, Duration)} one last time
+     */
+    @Override
+    public void dispose() {
+        disposed = true;
+        store.dispose();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+
+    /**
+     * @return the cap on calls in flight to a region's host, which moves with how fast riot answers
+     */
+    public ConcurrencyLimit getConcurrency(Region region) {
+        return concurrency.computeIfAbsent(region, key -> new ConcurrencyLimit());
+    }
+
+    /**
+     * Every response tells us the real limits of our key, so the static {@link RateLimits} are only used until the
+     * first response of a bucket comes back. It also tells us how much of them riot has counted, which is how we find
+     * out about calls we didn't make
+     */
+    private void updateLimits(Dispenser bucket, HttpHeaders headers) {
+        Dispenser app = getApp(bucket.getRegion());
+        bucket.resize(headers.get("X-Method-Rate-Limit"));
+        app.resize(headers.get("X-App-Rate-Limit"));
+        bucket.reconcile(headers.get("X-Method-Rate-Limit-Count"));
+        app.reconcile(headers.get("X-App-Rate-Limit-Count"));
     }
 
+    /**
+     * The {@link Priority}, {@link Tenant} and {@link Deadline} of a request are read from the subscriber context, see
+     * {@link Priority#context()}. A request that can't get both its tickets before its deadline fails right away
+     */
     public Mono<String> push(RateLimits limit, Region region, HttpClient.ResponseReceiver<?> input) {
-        Dispenser bucket = buckets.get(limit) //get map<region, bucket>
-                .computeIfAbsent(region, key -> new Dispenser(limit, region)); //get actual bucket
-        Request request = new Request(input);
-        TicketedRequest ticketed = new TicketedRequest(request, this, bucket);
-        return pushTicket(ticketed);
-    }
-
-    public Mono<String> pushTicket(TicketedRequest ticket) {
-        return Mono.defer(() -> {
-            ingest.emitNext(ticket, FailureStrategies.RETRY_ON_SERIALIZED);
-            return ticket.getResponse()
-                    .doOnCancel(() -> ticket.dispose());
+        return push(limit, region, input, Request.UTF_8);
+    }
+
+    /**
+     * Same as {@link #push(RateLimits, Region, HttpClient.ResponseReceiver)}, with the body decoded straight from
+     * netty's buffer
+     */
+    @Override
+    public <T> Mono<T> push(RateLimits limit, Region region, HttpClient.ResponseReceiver<?> input, Function<ByteBuf, T> decoder) {
+        return Mono.deferContextual(context -> {
+            Dispenser bucket = getBucket(limit, region);
+            Priority priority = context.getOrDefault(Priority.class, Priority.NORMAL);
+            Tenant tenant = context.getOrDefault(Tenant.class, Tenant.DEFAULT);
+            Deadline deadline = context.getOrDefault(Deadline.class, null);
+            if(deadline != null) {
+                long now = System.currentTimeMillis();
+                //the method and app waits overlap, so the longer one is the least we'll wait
+                long estimate = Math.max(bucket.estimateFreeAt(priority, tenant, now), getApp(region).estimateFreeAt(priority, tenant, now));
+                if(estimate > deadline.toEpochMilli()) {
+                    return Mono.error(new DeadlineExceededException("Estimated ticket at " + Instant.ofEpochMilli(estimate) + " for " + limit + " is after " + deadline.getInstant()));
+                }
+            }
+
+            Dispenser app = getApp(region);
+            if(bucket.isBackpressured() || app.isBackpressured()) {
+                long start = System.nanoTime(); //the wait for room counts towards latency too
+                return bucket.admit().then(app.admit()).then(Mono.defer(() -> { //nothing is built for a request that has to wait for room
+                    TicketedRequest<T> ticket = new TicketedRequest<>(new Request<>(input, headerListeners.get(bucket), decoder), this, bucket, 0, priority, deadline, tenant);
+                    ticket.pushedAt(start);
+                    return sent(ticket);
+                }));
+            }
+            //already deferred, so the request is built and sent right here
+            return sent(new TicketedRequest<>(new Request<>(input, headerListeners.get(bucket), decoder), this, bucket, 0, priority, deadline, tenant));
         });
     }
 
-    private Instant future = Instant.EPOCH;
-    public void limit(Duration time) {
-        log.info("Ratelimiter got limit " + time);
-        future = Instant.now().plus(time);
+    /**
+     * Queued counts the app level dispenser of the region too, whatever waits there for any limit goes before a new
+     * request does
+     */
+    @Override
+    public Optional<Capacity> getCapacity(RateLimits limit, Region region) {
+        Dispenser bucket = getBucket(limit, region);
+        Dispenser app = getApp(region);
+        Instant nextFree = Collections.max(List.of(Instant.now(), bucket.acquireAt(), app.acquireAt()));
+        return Optional.of(new Capacity(Math.min(bucket.available(), app.available()), bucket.getQueued() + app.getQueued(), nextFree));
+    }
+
+    /**
+     * Estimates for normal priority requests of the default tenant, the same way deadlines are checked
+     */
+    @Override
+    public Optional<Duration> estimate(RateLimits limit, Region region, int requests) {
+        if(requests <= 0) return Optional.of(Duration.ZERO);
+        long now = System.currentTimeMillis();
+        long last = Math.max(
+                getBucket(limit, region).estimateFreeAt(Priority.NORMAL, Tenant.DEFAULT, requests - 1, now),
+                getApp(region).estimateFreeAt(Priority.NORMAL, Tenant.DEFAULT, requests - 1, now)
+        );
+        return Optional.of(Duration.ofMillis(last - now));
+    }
+
+    /**
+     * @return time from push to response of every request in a lane that wasn't cancelled
+     */
+    public LatencyRecorder getLatency(Priority priority) {
+        return latency.get(priority);
+    }
+
+    /**
+     * @return requests waiting in the dispenser of a limit, pass the master limit for the app level one
+     */
+    public int getQueued(RateLimits limit, Region region) {
+        Dispenser dispenser = dispensers(limit).get(region);
+        return dispenser == null ? 0 : dispenser.getQueued();
+    }
+
+    /**
+     * @return calls riot counted that the dispenser of a limit didn't as of its last response, see
+     * {@link Dispenser#getDrift()}. Pass the master limit for the app level one
+     */
+    public int getDrift(RateLimits limit, Region region) {
+        Dispenser dispenser = dispensers(limit).get(region);
+        return dispenser == null ? 0 : dispenser.getDrift();
+    }
+
+    /**
+     * @return slots the dispenser of a limit has taken up for calls it didn't make
+     */
+    public long getReserved(RateLimits limit, Region region) {
+        Dispenser dispenser = dispensers(limit).get(region);
+        return dispenser == null ? 0 : dispenser.getReserved();
+    }
+
+    /**
+     * @return time from push until both tickets were handed out, for every try of a tenant's requests
+     */
+    public LatencyRecorder getWaits(String tenant) {
+        return waits.computeIfAbsent(tenant, key -> new LatencyRecorder());
+    }
+
+    public <T> Mono<T> pushTicket(TicketedRequest<T> ticket) {
+        return Mono.defer(() -> sent(ticket));
+    }
+
+    private <T> Mono<T> sent(TicketedRequest<T> ticket) {
+        send(ticket);
+        return ticket.getResponse()
+                .doOnCancel(ticket::dispose);
+    }
+
+    /**
+     * The reasoning behind doing individual buckets before master buckets is that the majority of delayed tickets will
+     * spend time in their individual bucket, and during that time we don't want to be consuming master slots.
+     * <p>
+     * Every request goes through the dispensers on its own subscription. Waiting happens in the dispenser queues,
+     * which take requests from any number of threads without locking and are served by a single drain loop, so pushing
+     * threads never wait on each other. A shared sink feeding flatMap stages used to sit in front of them, but its
+     * emissions spun whenever two threads pushed at once and every finished stage rescanned everything in flight.
+     * Dispensers hand tickets back through {@link #ticketed(TicketedRequest, Dispenser)} rather than a Mono per hop, so
+     * the way through them costs no allocations of its own
+     */
+    private void send(TicketedRequest<?> ticket) {
+        ticket.getBucket().offer(ticket); //buckets
+    }
+
+    //called by the drain loop of the dispenser that just gave a request its ticket
+    void ticketed(TicketedRequest<?> request, Dispenser from) {
+        if(from == request.getBucket()) {
+            getApp(request.getRegion()).offer(request); //master
+            return;
+        }
+        getWaits(request.getTenant().getName()).recordNanos(request.getWaitNanos());
+        log.trace("Ticketed leaving ratelimiter: {}", request);
+        request.getTry().subscribe(); //evaluate values, each waits for a ConcurrencyLimit slot
+    }
+
+    private static class Bound {
+        private final int capacity;
+        private final OverflowPolicy overflow;
+
+        private Bound(int capacity, OverflowPolicy overflow) {
+            this.capacity = capacity;
+            this.overflow = overflow;
+        }
     }
 }
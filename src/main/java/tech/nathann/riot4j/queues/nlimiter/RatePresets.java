@@ -2,10 +2,18 @@ package tech.nathann.riot4j.queues.nlimiter;
 
 import tech.nathann.riot4j.queues.RateLimits;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
+/**
+ * Every call makes a new limiter, so clients (and each key of a client) never share a budget
+ */
 public class RatePresets {
 
     private static final List<RateLimits> respected = Arrays.stream(RateLimits.values())
@@ -15,16 +23,87 @@ public class RatePresets {
             .filter(lim -> !lim.equals(RateLimits.RIOT4J_PROD_SECONDARY))
             .collect(Collectors.toList());
 
-    public static final ProactiveRatelimiter DEV_CLIENT = new ProactiveRatelimiter(
-            RateLimits.RIOT4J_DEV_MASTER,
-            RateLimits.RIOT4J_DEV_SECONDARY,
-            respected
-    );
-
-    //todo this is specific to my limits
-    public static final ProactiveRatelimiter PROD_CLIENT = new ProactiveRatelimiter(
-            RateLimits.RIOT4J_PROD_MASTER,
-            RateLimits.RIOT4J_PROD_SECONDARY,
-            respected
-    );
+    //a crash without a shutdown hook forgets at most this much, which is less than the two minute secondary windows
+    private static final Duration SNAPSHOT_INTERVAL = Duration.ofSeconds(10);
+
+    public static ProactiveRatelimiter dev() {
+        return new ProactiveRatelimiter(
+                RateLimits.RIOT4J_DEV_MASTER,
+                RateLimits.RIOT4J_DEV_SECONDARY,
+                respected
+        );
+    }
+
+    //starts from the default production limits, raised keys are picked up from response headers
+    public static ProactiveRatelimiter production() {
+        return new ProactiveRatelimiter(
+                RateLimits.RIOT4J_PROD_MASTER,
+                RateLimits.RIOT4J_PROD_SECONDARY,
+                respected
+        );
+    }
+
+    /**
+     * A dev limiter that shares its budget with every other process using the same key and directory
+     */
+    public static ProactiveRatelimiter devShared(Path directory, String token) {
+        return new ProactiveRatelimiter(
+                RateLimits.RIOT4J_DEV_MASTER,
+                RateLimits.RIOT4J_DEV_SECONDARY,
+                respected,
+                WindowStore.mapped(directory.resolve(keyFolder(token)))
+        );
+    }
+
+    /**
+     * A production limiter that shares its budget with every other process using the same key and directory
+     */
+    public static ProactiveRatelimiter productionShared(Path directory, String token) {
+        return new ProactiveRatelimiter(
+                RateLimits.RIOT4J_PROD_MASTER,
+                RateLimits.RIOT4J_PROD_SECONDARY,
+                respected,
+                WindowStore.mapped(directory.resolve(keyFolder(token)))
+        );
+    }
+
+    /**
+     * A dev limiter that carries its windows over a restart, see {@link WindowStore#snapshot(Path, Duration)}. Limiters
+     * on the same key save into one file, dispose each of them when done so the file is saved and stops being saved
+     */
+    public static ProactiveRatelimiter devPersisted(Path directory, String token) {
+        return new ProactiveRatelimiter(
+                RateLimits.RIOT4J_DEV_MASTER,
+                RateLimits.RIOT4J_DEV_SECONDARY,
+                respected,
+                WindowStore.snapshot(directory.resolve(keyFolder(token) + ".limits"), SNAPSHOT_INTERVAL)
+        );
+    }
+
+    /**
+     * A production limiter that carries its windows over a restart, see {@link WindowStore#snapshot(Path, Duration)}. Limiters
+     * on the same key save into one file, dispose each of them when done so the file is saved and stops being saved
+     */
+    public static ProactiveRatelimiter productionPersisted(Path directory, String token) {
+        return new ProactiveRatelimiter(
+                RateLimits.RIOT4J_PROD_MASTER,
+                RateLimits.RIOT4J_PROD_SECONDARY,
+                respected,
+                WindowStore.snapshot(directory.resolve(keyFolder(token) + ".limits"), SNAPSHOT_INTERVAL)
+        );
+    }
+
+    //every key has its own budget, so every key gets its own folder. Hashed so the key itself never ends up on disk
+    private static String keyFolder(String token) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            StringBuilder folder = new StringBuilder();
+            for(int i = 0; i < 8; i++) {
+                folder.append(String.format("%02x", hash[i]));
+            }
+            return folder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
 }
@@ -0,0 +1,75 @@
+package tech.nathann.riot4j.queues.nlimiter;
+
+import tech.nathann.riot4j.queues.RateLimits;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A single count:seconds pair of a rate limit. Riot sends these comma separated in the X-App-Rate-Limit and
+ * X-Method-Rate-Limit headers, eg. "20:1,100:120"
+ */
+public class RateWindow {
+    private final int count;
+    private final Duration length;
+
+    public RateWindow(int count, Duration length) {
+        this.count = count;
+        this.length = length;
+    }
+
+    public static RateWindow of(RateLimits limit) {
+        return new RateWindow(limit.getCount(), limit.getLength());
+    }
+
+    /**
+     * @param header value of a rate limit header
+     * @return every window in the header, or an empty list if the header is missing or malformed
+     */
+    public static List<RateWindow> parse(String header) {
+        List<RateWindow> windows = new ArrayList<>();
+        if(header == null || header.isBlank()) return windows;
+
+        for(String pair: header.split(",")) {
+            String[] split = pair.trim().split(":");
+            if(split.length != 2) return new ArrayList<>();
+            try {
+                int count = Integer.parseInt(split[0]);
+                long seconds = Long.parseLong(split[1]);
+                if(count <= 0 || seconds <= 0) return new ArrayList<>();
+                windows.add(new RateWindow(count, Duration.ofSeconds(seconds)));
+            } catch (NumberFormatException e) {
+                return new ArrayList<>();
+            }
+        }
+        return windows;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public Duration getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RateWindow that = (RateWindow) o;
+        return count == that.count && length.equals(that.length);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(count, length);
+    }
+
+    @Override
+    public String toString() {
+        return count + ":" + length.getSeconds();
+    }
+}
@@ -1,6 +1,8 @@
 package tech.nathann.riot4j.queues.nlimiter;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ConnectTimeoutException;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.timeout.ReadTimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,22 +14,41 @@ import tech.nathann.riot4j.exceptions.RetryableException;
 import tech.nathann.riot4j.queues.FailureStrategies;
 
 import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
-public class Request {
+/**
+ * @param <T> what a successful body is decoded into
+ */
+public class Request<T> {
     private static final Logger log = LoggerFactory.getLogger(Request.class);
+    public static final Function<ByteBuf, String> UTF_8 = body -> body.toString(StandardCharsets.UTF_8);
 
     private final HttpClient.ResponseReceiver<?> httpRequest;
-    private final Sinks.One<String> callback = Sinks.one();
+    private final Consumer<HttpHeaders> headerListener;
+    private final Function<ByteBuf, T> decoder;
+    private final Sinks.One<T> callback = Sinks.one();
 
-    public Request(HttpClient.ResponseReceiver<?> httpRequest) {
+    /**
+     * @param decoder turns the body into the result while netty still holds it, it must not keep the buffer
+     */
+    public Request(HttpClient.ResponseReceiver<?> httpRequest, Consumer<HttpHeaders> headerListener, Function<ByteBuf, T> decoder) {
         this.httpRequest = httpRequest;
+        this.headerListener = headerListener;
+        this.decoder = decoder;
     }
 
-    public Mono<String> getRequest() {
+    public Request(HttpClient.ResponseReceiver<?> httpRequest, Function<ByteBuf, T> decoder) {
+        this(httpRequest, headers -> {}, decoder);
+    }
+
+    public Mono<T> getRequest() {
         return httpRequest.responseSingle(((response, byteBufMono) -> {
+            headerListener.accept(response.responseHeaders());
             if(response.status().code() / 100 == 2) {
-                log.debug("Status is " + response.status().code()  + " Method rate limit count: " + response.responseHeaders().get("X-Method-Rate-Limit-Count") + " - App count: " + response.responseHeaders().get("X-App-Rate-Limit-Count"));
-                return byteBufMono.asString(StandardCharsets.UTF_8);
+                if(log.isDebugEnabled()) //the header lookups would run even with debug off
+                    log.debug("Status is {} Method rate limit count: {} - App count: {}", response.status().code(), response.responseHeaders().get("X-Method-Rate-Limit-Count"), response.responseHeaders().get("X-App-Rate-Limit-Count"));
+                return byteBufMono.map(decoder); //the aggregated body is released right after this
             }
             else {
                 log.warn("Status is " + response.status().code()  + " Method rate limit count: " + response.responseHeaders().get("X-Method-Rate-Limit-Count") + " - App count: " + response.responseHeaders().get("X-App-Rate-Limit-Count"));
@@ -48,7 +69,7 @@ public class Request {
         });
     }
 
-    public Sinks.One<String> getCallback() {
+    public Sinks.One<T> getCallback() {
         return callback;
     }
 }
@@ -0,0 +1,230 @@
+package tech.nathann.riot4j.queues.nlimiter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Schedulers;
+import tech.nathann.riot4j.enums.regions.Region;
+import tech.nathann.riot4j.queues.RateLimits;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap windows that are written to a file on shutdown and every so often, and read back by the next process that opens
+ * the same file. Riot keeps counting our calls across a restart, so a new process picks up where the old one left off
+ * instead of bursting a whole window into limits that are already half used. Unlike {@link MappedWindowState} nothing is
+ * shared between processes while running, one file belongs to one process at a time. Inside a process every store on
+ * the same file is a view of one {@link Snapshot}, so clients on the same key save into one file instead of over each
+ * other, and the last view to be disposed saves it and stops the background saving
+ */
+class SnapshotWindowStore extends WindowStore {
+    private static final Logger log = LoggerFactory.getLogger(SnapshotWindowStore.class);
+    private static final int VERSION = 1;
+    //guards itself and the views of every snapshot in it
+    private static final Map<Path, Snapshot> snapshots = new HashMap<>();
+
+    private final Snapshot snapshot;
+    private final Map<String, WindowState> open = new ConcurrentHashMap<>();
+    private volatile boolean disposed = false;
+
+    private SnapshotWindowStore(Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @param interval only used by the first view of a file, later ones save along with it
+     */
+    static SnapshotWindowStore of(Path file, Duration interval) {
+        synchronized (snapshots) {
+            Snapshot snapshot = snapshots.computeIfAbsent(file.toAbsolutePath().normalize(), path -> new Snapshot(path, interval));
+            SnapshotWindowStore view = new SnapshotWindowStore(snapshot);
+            snapshot.views.add(view);
+            return view;
+        }
+    }
+
+    @Override
+    WindowState open(RateLimits limit, Region region, int index, RateWindow window) {
+        //not keyed by size, riot's headers may have changed the window since the last run and a ticket is a ticket
+        String key = limit + "-" + region + "-" + index;
+        WindowState state = new HeapWindowState(window.getCount());
+
+        long[] tickets = snapshot.restored.remove(key);
+        if(tickets != null) {
+            //same layout as a resize, the cursor starts on free slots and reaches the restored ones in order
+            int keep = Math.min(tickets.length, state.size());
+            int offset = state.size() - keep;
+            for(int i = 0; i < keep; i++) {
+                state.cas(offset + i, 0, tickets[tickets.length - keep + i]);
+            }
+            log.info("Restored " + keep + " tickets of " + key + " from " + snapshot.file);
+        }
+        open.put(key, state); //a resized window replaces the old one
+        return state;
+    }
+
+    /**
+     * Writes the windows of every view of the file now
+     */
+    @Override
+    public void save() {
+        snapshot.save();
+    }
+
+    /**
+     * Hands this view's tickets back to the snapshot, where the next store on the same key picks them up since riot is
+     * still counting them. The last view saves the file one last time and stops saving in the background
+     */
+    @Override
+    public void dispose() {
+        Snapshot last = null;
+        synchronized (snapshots) {
+            if(disposed) return;
+            disposed = true;
+            synchronized (snapshot) { //a save in between would count these tickets twice
+                long now = System.currentTimeMillis();
+                open.forEach((key, state) -> snapshot.restored.merge(key, tickets(state, now), SnapshotWindowStore::newest));
+                snapshot.views.remove(this);
+            }
+            if(snapshot.views.isEmpty()) {
+                snapshots.remove(snapshot.file);
+                last = snapshot;
+            }
+        }
+        if(last != null) last.dispose();
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return disposed;
+    }
+
+    //oldest first, calls in flight are gone once we stop so they count as finishing now
+    private static long[] tickets(WindowState state, long now) {
+        long pos = state.position();
+        long[] tickets = new long[state.size()];
+        for(int i = 0; i < tickets.length; i++) {
+            long value = state.get((int) Math.floorMod(pos + i, (long) state.size()));
+            tickets[i] = value < 0 ? now : value;
+        }
+        return tickets;
+    }
+
+    //two clients on one key both spent riot's budget, so the newest tickets of either are what riot still counts
+    private static long[] newest(long[] a, long[] b) {
+        long[] both = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, both, a.length, b.length);
+        Arrays.sort(both);
+        return Arrays.copyOfRange(both, both.length - Math.max(a.length, b.length), both.length);
+    }
+
+    /**
+     * The file itself, shared by every view on it in this process
+     */
+    private static class Snapshot {
+        private final Path file;
+        //newest tickets of every window that isn't open, oldest first. Taken by the first window that opens with that key
+        private final Map<String, long[]> restored;
+        private final Set<SnapshotWindowStore> views = ConcurrentHashMap.newKeySet();
+
+        private final Thread hook;
+        private final Disposable task;
+
+        private Snapshot(Path file, Duration interval) {
+            this.file = file;
+            this.restored = new ConcurrentHashMap<>(read(file));
+
+            this.hook = new Thread(this::save, "riot4j-limit-snapshot");
+            Runtime.getRuntime().addShutdownHook(hook);
+            this.task = Schedulers.boundedElastic().schedulePeriodically(this::save, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * The file is replaced in one move, so a crash mid write keeps the last one. Saves never overlap, the periodic
+         * one and a manual one would otherwise race for the move
+         */
+        private synchronized void save() {
+            long now = System.currentTimeMillis();
+            Map<String, long[]> windows = new HashMap<>(restored);
+            for(SnapshotWindowStore view: views) {
+                view.open.forEach((key, state) -> windows.merge(key, tickets(state, now), SnapshotWindowStore::newest));
+            }
+
+            Path temp = null;
+            try {
+                temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+                try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    out.writeInt(VERSION);
+                    out.writeInt(windows.size());
+                    for(Map.Entry<String, long[]> entry: windows.entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeInt(entry.getValue().length);
+                        for(long ticket: entry.getValue()) {
+                            out.writeLong(ticket);
+                        }
+                    }
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.warn("Could not save rate limit snapshot " + file + ": " + e);
+                if(temp != null) {
+                    try {
+                        Files.deleteIfExists(temp);
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void dispose() {
+            task.dispose();
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                return; //already shutting down, the hook is saving
+            }
+            save();
+        }
+    }
+
+    //a missing or unreadable snapshot only costs us the burst it was meant to prevent, so it never fails startup
+    private static Map<String, long[]> read(Path file) {
+        Map<String, long[]> windows = new ConcurrentHashMap<>();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if(in.readInt() != VERSION) {
+                log.warn("Ignoring rate limit snapshot " + file + " of an unknown version");
+                return windows;
+            }
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long[] tickets = new long[in.readInt()];
+                for(int j = 0; j < tickets.length; j++) {
+                    tickets[j] = in.readLong();
+                }
+                windows.put(key, tickets);
+            }
+        } catch (NoSuchFileException e) {
+            return windows; //first run
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable rate limit snapshot " + file + ": " + e);
+            windows.clear();
+        }
+        return windows;
+    }
+}
@@ -0,0 +1,64 @@
+package tech.nathann.riot4j.queues.nlimiter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+
+/**
+ * A claimed slot in every window of a {@link Dispenser}. The slots stay in flight until the ticket is released, which
+ * should happen right after the request it was taken for finishes
+ */
+public class Ticket {
+    private final Dispenser dispenser;
+    private final List<TicketWindow> windows;
+    private final int[] slots;
+    private final long sent;
+    private final Pacer pacer; //null if the ticket wasn't paced
+    private final long paced; //where the pacer's claim moved it, to give the spot back
+    private static final VarHandle RELEASED;
+    static {
+        try {
+            RELEASED = MethodHandles.lookup().findVarHandle(Ticket.class, "released", boolean.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    private volatile boolean released = false;
+
+    Ticket(Dispenser dispenser, List<TicketWindow> windows, int[] slots, long sent, Pacer pacer, long paced) {
+        this.dispenser = dispenser;
+        this.windows = windows;
+        this.slots = slots;
+        this.sent = sent;
+        this.pacer = pacer;
+        this.paced = paced;
+    }
+
+    /**
+     * Marks the request of this ticket as finished now. Only the first call does anything
+     */
+    public void release() {
+        if(!RELEASED.compareAndSet(this, false, true)) return;
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < slots.length; i++) {
+            windows.get(i).release(slots[i], sent, now);
+        }
+        dispenser.drain();
+    }
+
+    /**
+     * Gives the slots back as if this ticket was never taken, for a request that was dropped before it was sent. Only
+     * the first call of this or {@link #release()} does anything
+     */
+    public void cancel() {
+        if(!RELEASED.compareAndSet(this, false, true)) return;
+        for(int i = 0; i < slots.length; i++) {
+            windows.get(i).giveBack(slots[i], sent);
+        }
+        dispenser.giveBack(pacer, paced);
+    }
+
+    public Dispenser getDispenser() {
+        return dispenser;
+    }
+}
@@ -0,0 +1,204 @@
+package tech.nathann.riot4j.queues.nlimiter;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ring of tickets for one window of a {@link Dispenser}, stored as a primitive long per slot. A slot holds:
+ * <ul>
+ *     <li>0 if it has never been used</li>
+ *     <li>a positive epoch milli of when its last request finished</li>
+ *     <li>a negative epoch milli of when its current request was sent, while that request is in flight</li>
+ * </ul>
+ * A slot can be reused once its request finished more than a window length ago. In flight slots that are never
+ * released expire after {@link #LOCK_TIMEOUT} so a lost request (or a crashed process sharing the window) can't eat a
+ * slot forever. Claims are made with CAS so no locking is needed to take a ticket
+ */
+class TicketWindow {
+    static final long LOCK_TIMEOUT = Duration.ofMinutes(5).toMillis();
+
+    private final RateWindow window;
+    private final long length;
+    private final WindowState state;
+
+    //set once this window has been resized, claims that race the resize are rolled back and in flight releases follow it
+    private volatile TicketWindow successor = null;
+    //slots given back that the cursor hasn't stepped back over yet. Starts over every lap, a slot given back a lap ago
+    //comes up again in order anyway
+    private final AtomicInteger givenBack = new AtomicInteger();
+
+    TicketWindow(RateWindow window, WindowState state) {
+        this.window = window;
+        this.length = window.getLength().toMillis();
+        this.state = state;
+    }
+
+    /**
+     * Moves the most recent tickets of this window into a window of a new size, so a lowered limit is already
+     * saturated by the requests we just sent and a raised limit only adds free slots. Slots of the new window that are
+     * already in use (another process sharing it got there first) are left alone
+     */
+    TicketWindow resize(RateWindow next, WindowState nextState) {
+        TicketWindow resized = new TicketWindow(next, nextState);
+        successor = resized;
+
+        long pos = state.position();
+        int keep = Math.min(state.size(), nextState.size());
+        int offset = nextState.size() - keep;
+        for(int i = 0; i < keep; i++) {
+            nextState.cas(offset + i, 0, state.get(index(pos - keep + i)));
+        }
+        return resized;
+    }
+
+    /**
+     * @return epoch milli when the current slot of this window frees up
+     */
+    long freeAt() {
+        return freeAt(state.get(index(state.position())));
+    }
+
+    /**
+     * Guesses when a request with ahead others queued in front of it gets a slot. Every full lap of the ring costs a
+     * window length, and in flight slots are assumed to finish now rather than at their lock timeout
+     */
+    long estimateFreeAt(long ahead, long now) {
+        long value = state.get(index(state.position() + ahead));
+        //a slot that's already free starts its next lap now, not a window after it was last used
+        long base = value >= 0 ? Math.max(now, value + length) : now + length;
+        return base + (ahead / state.size()) * length;
+    }
+
+    private long freeAt(long value) {
+        if(value >= 0) return value + length;
+        return -value + LOCK_TIMEOUT + length;
+    }
+
+    /**
+     * Tries to claim the current slot for a request sent at now. The cursor is moved before the slot is taken, so a
+     * claim in progress never looks like a full window to the others, and losing a race only means trying the next slot
+     * @return the claimed slot, or -1 if the window has no free slot
+     */
+    int tryClaim(long now) {
+        while(true) {
+            long pos = state.position();
+            int index = index(pos);
+            long value = state.get(index);
+            if(successor != null) return -1;
+            if(freeAt(value) > now) {
+                if(state.position() != pos) continue; //taken by a claim that had already moved on
+                return -1;
+            }
+
+            if(!state.casPosition(pos, pos + 1)) continue; //another claim got here first
+            if(!state.cas(index, value, -now)) continue; //a late release changed it, it comes up again next lap
+            if(index == 0) givenBack.set(0);
+            if(successor != null) {
+                rollback(index, now);
+                return -1;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Undoes a claim that could not be used, because it lost a race or another window had no slot. Nothing was sent, so
+     * it's given back like a cancelled ticket instead of using the slot up for a window length
+     */
+    void rollback(int index, long now) {
+        giveBack(index, now);
+    }
+
+    void release(int index, long sent, long now) {
+        state.cas(index, -sent, now);
+        //a resize copies in flight slots without clearing ours, so the copy has to be released too
+        TicketWindow next = successor;
+        if(next != null) next.releaseMoved(sent, now, false);
+    }
+
+    /**
+     * Gives back a claim whose request was never sent. The slot is marked as finished a window length before it was
+     * claimed, so it's free again right away but never less strict than the value it replaced. If it was the latest
+     * claim the cursor steps back onto it, otherwise it comes up again on the next lap of the ring
+     */
+    void giveBack(int index, long sent) {
+        if(state.cas(index, -sent, sent - length)) givenBack.incrementAndGet();
+        rewind();
+        TicketWindow next = successor;
+        if(next != null) next.releaseMoved(sent, 0, true);
+    }
+
+    //a resize copied our in flight slot to a different index, rare enough that a scan is fine
+    private void releaseMoved(long sent, long now, boolean unsent) {
+        for(int i = 0; i < state.size(); i++) {
+            if(state.cas(i, -sent, unsent ? sent - length : now)) {
+                if(unsent) givenBack.incrementAndGet();
+                break;
+            }
+        }
+        if(unsent) rewind();
+        TicketWindow next = successor;
+        if(next != null) next.releaseMoved(sent, now, unsent);
+    }
+
+    //steps the cursor back over free slots, the slots behind them are still the oldest so the ring stays in order. It
+    //takes at most one step per slot given back, so a quiet window full of free slots isn't walked all the way round
+    private void rewind() {
+        long now = System.currentTimeMillis();
+        int steps = Math.min(givenBack.get(), state.size());
+        for(int i = 0; i < steps; i++) {
+            long pos = state.position();
+            if(freeAt(state.get(index(pos - 1))) > now || !state.casPosition(pos, pos - 1)) return;
+            givenBack.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return slots that could be claimed back to back right now, counted from the cursor
+     */
+    int available(long now) {
+        long pos = state.position();
+        int free = 0;
+        while(free < state.size() && freeAt(state.get(index(pos + free))) <= now) {
+            free++;
+        }
+        return free;
+    }
+
+    /**
+     * Counts the slots in use, newest first. Stops at the first free slot or at limit, so a busy window never costs a
+     * full scan
+     */
+    int inUse(int limit, long now) {
+        long pos = state.position();
+        int used = 0;
+        while(used < Math.min(limit, state.size()) && freeAt(state.get(index(pos - used - 1))) > now) {
+            used++;
+        }
+        return used;
+    }
+
+    /**
+     * Uses up to count free slots for calls someone else made, as if they finished now
+     * @return how many slots were taken, fewer than count once the window is full
+     */
+    int reserve(int count, long now) {
+        int reserved = 0;
+        while(reserved < count) {
+            long pos = state.position();
+            int index = index(pos);
+            long value = state.get(index);
+            if(freeAt(value) > now) break;
+            if(state.cas(index, value, now) && state.casPosition(pos, pos + 1)) reserved++;
+        }
+        return reserved;
+    }
+
+    private int index(long pos) {
+        return (int) Math.floorMod(pos, (long) state.size());
+    }
+
+    RateWindow getWindow() {
+        return window;
+    }
+}
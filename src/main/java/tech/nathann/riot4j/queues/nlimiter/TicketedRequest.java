@@ -4,118 +4,309 @@ import org.reactivestreams.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.Sinks;
+import tech.nathann.riot4j.enums.regions.Region;
+import tech.nathann.riot4j.exceptions.DeadlineExceededException;
+import tech.nathann.riot4j.exceptions.LoadShedException;
 import tech.nathann.riot4j.exceptions.RateLimitedException;
 import tech.nathann.riot4j.exceptions.RetryableException;
+import tech.nathann.riot4j.queues.Deadline;
 import tech.nathann.riot4j.queues.FailureStrategies;
+import tech.nathann.riot4j.queues.Priority;
+import tech.nathann.riot4j.queues.Tenant;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.concurrent.TimeoutException;
 
-public class TicketedRequest {
+/**
+ * @param <T> what the response body is decoded into
+ */
+public class TicketedRequest<T> {
     private static final Logger log = LoggerFactory.getLogger(TicketedRequest.class);
 
-    private final Request request;
+    private final Request<T> request;
     private final ProactiveRatelimiter master;
     private final Dispenser bucket;
-    private final Sinks.One<Instant> lock = Sinks.one();
+    //a try holds at most its bucket's and its app's ticket, kept in fields rather than a collection
+    private static final VarHandle BUCKET_TICKET;
+    private static final VarHandle APP_TICKET;
+    private static final VarHandle FATE;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            BUCKET_TICKET = lookup.findVarHandle(TicketedRequest.class, "bucketTicket", Ticket.class);
+            APP_TICKET = lookup.findVarHandle(TicketedRequest.class, "appTicket", Ticket.class);
+            FATE = lookup.findVarHandle(TicketedRequest.class, "fate", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+    private static final int UNDECIDED = 0, SENT = 1, DROPPED = 2;
+
+    private volatile Ticket bucketTicket = null;
+    private volatile Ticket appTicket = null;
+    private volatile int fate = UNDECIDED; //set once, by the call going out or by the request being dropped before it could
     private final int retries;
+    private final Priority priority;
+    private final Deadline deadline; //null if the caller will wait forever
+    private final Tenant tenant;
+    private final long created = System.nanoTime();
+    private long pushed = created; //nano time the caller pushed, retries keep the first try's
+    private Duration backoff = Duration.ZERO; //last sleep before this try, jitter grows from it
 
-    public TicketedRequest(Request request, ProactiveRatelimiter master, Dispenser bucket, int retries) {
+    public TicketedRequest(Request<T> request, ProactiveRatelimiter master, Dispenser bucket, int retries, Priority priority, Deadline deadline, Tenant tenant) {
         this.request = request;
         this.master = master;
         this.bucket = bucket;
         this.retries = retries;
+        this.priority = priority;
+        this.deadline = deadline;
+        this.tenant = tenant;
+    }
+
+    public TicketedRequest(Request<T> request, ProactiveRatelimiter master, Dispenser bucket, int retries, Priority priority) {
+        this(request, master, bucket, retries, priority, null, Tenant.DEFAULT);
     }
 
-    public TicketedRequest(Request request, ProactiveRatelimiter master, Dispenser bucket) {
-        this(request, master, bucket, 0);
+    public TicketedRequest(Request<T> request, ProactiveRatelimiter master, Dispenser bucket) {
+        this(request, master, bucket, 0, Priority.NORMAL);
     }
 
     /**
      * We release the rate limit immediately after the web request, this has the benefit of being more aggressive, but
      * the drawback that future tries have to get their own rate-limit ticket
      */
-    public Mono<String> getTry() {
-        if(isDispose) {
-            log.info("Pre-disposing value.");
+    public Mono<T> getTry() {
+        if(isDispose || fate == DROPPED) { //a dropped call mustn't take a concurrency slot either
+            log.trace("Pre-disposing value.");
+            releaseTickets(); //never sent, so they go back unused
             request.getCallback().emitError(new TimeoutException(), FailureStrategies.RETRY_ON_SERIALIZED);
             return Mono.empty();
         }
 
-        return request.getRequest()
-                .doOnCancel(() -> {
-                    log.debug("Cancelled request in bucket " + bucket);
+        //a cancel that wins the race keeps the call from going out, so its tickets can be given back
+        return master.getConcurrency(getRegion()).run(Mono.defer(() -> FATE.compareAndSet(this, UNDECIDED, SENT) ? request.getRequest() : Mono.<T>empty()))
+                .doOnEach(any -> releaseTickets()) //no matter what we release tickets AFTER value emitted
+                .onErrorResume(RateLimitedException.class, rate -> onRateLimit(rate))
+                .onErrorResume(RetryableException.class, retry -> backOff(retry, null))
+                .doOnNext(fin -> {
+                    master.getRetryBudget().onSuccess();
+                    answer(fin);
                 })
-                .doOnSubscribe(sub -> subscription = sub) //todo cringe
-                .doOnEach(any -> lock.emitValue(Instant.now(), FailureStrategies.RETRY_ON_SERIALIZED)) //no matter what we release lock AFTER value emitted
-                .onErrorResume(RateLimitedException.class, rate -> {
-                    Duration length = Duration.ofSeconds(rate.getSecs());
-                    log.error(bucket.getLimit() + " GOT RATE LIMIT, DELAYING " + length);
-                    master.limit(length);
-                    return Mono.delay(length) //todo technically unnecessary since we lock master but ehhhh
-                            .flatMap(fin -> getRetry()); //delay then retry todo   this is sus
-                })
-                .onErrorResume(RetryableException.class, retry -> {
-                    if(retries > 7) { //give up
-                        log.error("Retried MAX amount " + retries + " of times in: " + bucket);
-                        return Mono.error(retry);
-                    }
-                    Duration length = Duration.ofSeconds(retryTime()); //should be 1 2 4 8 16 32 64 etc
-                    log.warn("Bucket got a retryable error! Delaying " + length + ". This is attempt " + retries +  " for this request");
-                    return Mono.delay(length)
-                            .flatMap(fin -> getRetry());
-                })
-                .doOnNext(fin -> request.getCallback().emitValue(fin, FailureStrategies.RETRY_ON_SERIALIZED))
                 .onErrorResume(throwable -> {
-                    log.warn("Error passing through " + bucket.getLimit() +  " bucket: " + throwable.toString());
-                    request.getCallback().emitError(throwable, FailureStrategies.RETRY_ON_SERIALIZED);
+                    log.warn("Error passing through {} bucket: {}", bucket.getLimit(), throwable.toString());
+                    answerError(throwable);
                     return Mono.empty();
+                })
+                //taken below the retries, so a cancel also stops a backoff sleep or a retry still waiting for tickets
+                .doOnSubscribe(sub -> {
+                    subscription = sub;
+                    if(isDispose) sub.cancel(); //disposed between the check above and here
                 });
     }
 
-    private Subscription subscription = null;
-    private boolean isDispose = false;
+    /**
+     * Pauses whatever the 429 was about, then retries. Our key's method and app limits pause their dispenser so every
+     * request behind it waits too, while a service 429 is about riot's servers and only backs this request off
+     */
+    private Mono<T> onRateLimit(RateLimitedException rate) {
+        if(!rate.hasRetryAfter() || rate.getScope() == RateLimitedException.Scope.SERVICE) {
+            //a service that told us how long to wait is trusted, otherwise it's the same backoff as a 5xx
+            return backOff(rate, rate.hasRetryAfter() ? Duration.ofSeconds(rate.getSecs()) : null);
+        }
+
+        Duration length = Duration.ofSeconds(rate.getSecs());
+        Dispenser limited = rate.getScope() == RateLimitedException.Scope.APPLICATION ? master.getApp(getRegion()) : bucket;
+        log.error("{} GOT RATE LIMIT IN {}, DELAYING {}", limited.getLimit(), limited.getRegion(), length);
+        limited.pause(length); //the retry waits in it with everyone else
+        return getRetry();
+    }
+
+    /**
+     * Retries after a sleep if the client's {@link tech.nathann.riot4j.queues.RetryBudget} allows it
+     * @param sleep how long riot asked us to wait, or null to pick a jittered sleep
+     */
+    private Mono<T> backOff(Throwable error, Duration sleep) {
+        if(retries > 7) { //give up
+            log.error("Retried MAX amount {} of times in: {}", retries, bucket);
+            return Mono.error(error);
+        }
+        if(!master.getRetryBudget().tryRetry()) {
+            log.warn("Retry budget is empty, failing instead of retrying in: {}", bucket);
+            return Mono.error(error);
+        }
+
+        Duration length = sleep == null ? master.getRetryBudget().backoff(backoff) : sleep;
+        log.warn("Bucket got a retryable error! Delaying {}. This is attempt {} for this request", length, retries);
+        return LimiterTimer.delay(length)
+                .then(Mono.defer(() -> getRetry(length)));
+    }
+
+    private volatile Subscription subscription = null;
+    private volatile boolean isDispose = false;
+    private volatile Dispenser queuedIn = null; //the dispenser this request waits in or last waited in
+    private long queuedAt; //nano time it was queued there, only read by that dispenser's drain loop
 
+    /**
+     * Cancels this request. If it's still queued it leaves its dispenser right away, and if it was never sent its
+     * tickets go back to their windows as if they were never taken
+     */
     public void dispose() {
-        log.debug("Disposing subscription!");
-        lock.emitValue(Instant.now(), FailureStrategies.RETRY_ON_SERIALIZED);
+        log.trace("Disposing subscription!");
+        drop();
         isDispose = true;
-        if(subscription == null) {
-            log.warn("No subscription found!");
-        } else {
-            subscription.cancel();
-        }
+        releaseTickets();
+        Dispenser queued = queuedIn;
+        if(queued != null) queued.remove(this);
+        Subscription sent = subscription;
+        if(sent != null) sent.cancel(); //null while it's still waiting for its tickets, a retry is disposed through it
     }
 
-    public Mono<String> getResponse() {
+    public Mono<T> getResponse() {
         return request.getCallback().asMono();
     }
 
-    private Mono<String> getRetry() {
-        return master.pushTicket(new TicketedRequest(request, master, bucket, retries + 1));
+    private Mono<T> getRetry() {
+        return getRetry(backoff);
     }
 
-    public Mono<Instant> getLock() {
-        return Mono.firstWithValue(
-                lock.asMono(),
-                Mono.delay(Duration.ofMinutes(5)).map(fin -> {
-                    log.error("LOCK TIMED OUT");
-                    return Instant.now();
-                })
-        );
+    private Mono<T> getRetry(Duration slept) {
+        if(isDispose) return Mono.empty(); //the caller is gone, a retry would only use up a ticket
+        TicketedRequest<T> retry = new TicketedRequest<>(request, master, bucket, retries + 1, priority, deadline, tenant);
+        retry.backoff = slept;
+        retry.pushed = pushed;
+        //the retry answers the caller itself, passing its result on would answer twice or retry its failure again
+        return master.pushTicket(retry)
+                .onErrorResume(e -> Mono.empty())
+                .then(Mono.empty());
+    }
+
+    /**
+     * Fails this request without sending it because its deadline can't be met anymore
+     */
+    void expire() {
+        log.debug("Deadline passed while queued in {}", bucket);
+        fail(new DeadlineExceededException("Deadline " + deadline.getInstant() + " passed while queued for " + bucket.getLimit()));
+    }
+
+    /**
+     * Fails this request without sending it because a full bucket dropped it
+     */
+    void shed(Dispenser from) {
+        log.debug("Shed from full {}", from);
+        fail(new LoadShedException("Queue of " + from + " is full"));
+    }
+
+    private void fail(Throwable error) {
+        drop();
+        releaseTickets();
+        answerError(error);
     }
 
-    private int retryTime() {
-        return (int) Math.pow(2, retries);
+    //latency is recorded before the caller sees the result, a cancelled caller isn't waiting for one
+    private void answer(T value) {
+        if(!isDispose) master.getLatency(priority).recordNanos(System.nanoTime() - pushed);
+        request.getCallback().emitValue(value, FailureStrategies.RETRY_ON_SERIALIZED);
+    }
+
+    private void answerError(Throwable error) {
+        if(!isDispose) master.getLatency(priority).recordNanos(System.nanoTime() - pushed);
+        request.getCallback().emitError(error, FailureStrategies.RETRY_ON_SERIALIZED);
+    }
+
+    /**
+     * @param nanos when the caller pushed this request, if that was before it was built
+     */
+    void pushedAt(long nanos) {
+        pushed = nanos;
+    }
+
+    //whoever decides first wins, so a call that is already out is never given back
+    private void drop() {
+        FATE.compareAndSet(this, UNDECIDED, DROPPED);
+    }
+
+    /**
+     * Called by the drain loop of a dispenser once this request has its ticket there
+     */
+    void granted(Ticket ticket) {
+        addTicket(ticket);
+        master.ticketed(this, ticket.getDispenser());
+    }
+
+    void addTicket(Ticket ticket) {
+        if(ticket.getDispenser() == bucket) bucketTicket = ticket;
+        else appTicket = ticket;
+        if(isDispose) releaseTickets(); //handed out while we were being cancelled
+    }
+
+    void queued(Dispenser dispenser) {
+        queuedAt = System.nanoTime();
+        queuedIn = dispenser;
+    }
+
+    long getQueuedAt() {
+        return queuedAt;
+    }
+
+    boolean isDisposed() {
+        return isDispose;
+    }
+
+    /**
+     * Tickets that are never released expire on their own in {@link TicketWindow}, so there is no watchdog here. A
+     * request that was dropped unsent gives its tickets back instead of using them up
+     */
+    private void releaseTickets() {
+        settle((Ticket) BUCKET_TICKET.getAndSet(this, null));
+        settle((Ticket) APP_TICKET.getAndSet(this, null));
+    }
+
+    private void settle(Ticket ticket) {
+        if(ticket == null) return;
+        if(fate == DROPPED) ticket.cancel();
+        else ticket.release();
     }
 
     public Dispenser getBucket() {
         return bucket;
     }
 
-    public Request getRequest() {
+    /**
+     * @return whether this try should skip ahead of everything queued in its lane
+     */
+    public boolean isFront() {
+        return retries > 0 && master.getRetryBudget().isRequeueFront();
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return epoch milli this request is no longer wanted after, Long.MAX_VALUE without a deadline
+     */
+    public long getDeadline() {
+        return deadline == null ? Long.MAX_VALUE : deadline.toEpochMilli();
+    }
+
+    public Tenant getTenant() {
+        return tenant;
+    }
+
+    /**
+     * @return nanos since this try was created, which is how long it waited for its tickets once it has them
+     */
+    public long getWaitNanos() {
+        return System.nanoTime() - created;
+    }
+
+    public Region getRegion() {
+        return bucket.getRegion();
+    }
+
+    public Request<T> getRequest() {
         return request;
     }
 
@@ -125,6 +316,9 @@ public class TicketedRequest {
                 "request=" + request +
                 ", bucket=" + bucket +
                 ", retries=" + retries +
+                ", priority=" + priority +
+                ", deadline=" + deadline +
+                ", tenant=" + tenant +
                 ", subscription=" + subscription +
                 ", isDispose=" + isDispose +
                 '}';
@@ -0,0 +1,17 @@
+package tech.nathann.riot4j.queues.nlimiter;
+
+/**
+ * Position and slots of one {@link TicketWindow}. Every write goes through CAS so the state can be shared by anything
+ * that can see the same memory
+ */
+abstract class WindowState {
+    abstract int size();
+
+    abstract long position();
+
+    abstract boolean casPosition(long expected, long next);
+
+    abstract long get(int index);
+
+    abstract boolean cas(int index, long expected, long next);
+}
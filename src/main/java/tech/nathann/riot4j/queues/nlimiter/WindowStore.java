@@ -0,0 +1,98 @@
+package tech.nathann.riot4j.queues.nlimiter;
+
+import reactor.core.Disposable;
+import tech.nathann.riot4j.enums.regions.Region;
+import tech.nathann.riot4j.queues.RateLimits;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Decides where {@link Dispenser} windows keep their state. The default keeps it on the heap, {@link #mapped(Path)}
+ * keeps it in memory mapped files so several processes using the same key share one budget, and
+ * {@link #snapshot(Path, Duration)} carries it over a restart
+ */
+public abstract class WindowStore implements Disposable {
+    private static final WindowStore HEAP = new WindowStore() {
+        @Override
+        WindowState open(RateLimits limit, Region region, int index, RateWindow window) {
+            return new HeapWindowState(window.getCount());
+        }
+    };
+
+    public static WindowStore heap() {
+        return HEAP;
+    }
+
+    /**
+     * @param directory folder for the state files, every process sharing a key must use the same folder and every key
+     *                  needs its own folder
+     */
+    public static WindowStore mapped(Path directory) {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create rate limit directory " + directory, e);
+        }
+
+        return new WindowStore() {
+            @Override
+            WindowState open(RateLimits limit, Region region, int index, RateWindow window) {
+                //the size is part of the name so processes that saw different limit headers don't fight over a file
+                String name = limit + "-" + region + "-" + index + "-" + window.getCount() + "x" + window.getLength().getSeconds() + ".slots";
+                return new MappedWindowState(directory.resolve(name), window.getCount());
+            }
+
+            @Override
+            long maxSleep() {
+                return SHARED_POLL;
+            }
+        };
+    }
+
+    /**
+     * Keeps windows on the heap like {@link #heap()}, but saves them to a file on shutdown and every interval so a
+     * restarted process resumes with the budget riot still counts against it
+     * Stores on the same file in one process share it, dispose each of them once it's no longer used
+     * @param file snapshot of one key, read back by the next store opened on it. Its folder is created if missing
+     * @param interval how often to save while running, a crash loses at most this much
+     */
+    public static WindowStore snapshot(Path file, Duration interval) {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if(parent != null) Files.createDirectories(parent);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create rate limit directory for " + file, e);
+        }
+        return SnapshotWindowStore.of(file, interval);
+    }
+
+    //other processes can't wake our drain loop when they release a ticket, so shared dispensers poll
+    private static final long SHARED_POLL = 50;
+
+    abstract WindowState open(RateLimits limit, Region region, int index, RateWindow window);
+
+    /**
+     * Writes the windows to disk now, only does something for {@link #snapshot(Path, Duration)} stores
+     */
+    public void save() {
+    }
+
+    /**
+     * Lets go of a {@link #snapshot(Path, Duration)} store. The last one on a file saves it one last time and stops
+     * saving in the background. Nothing to stop for the others
+     */
+    @Override
+    public void dispose() {
+    }
+
+    /**
+     * @return the longest a dispenser may sleep before looking at its windows again
+     */
+    long maxSleep() {
+        return Long.MAX_VALUE;
+    }
+}
@@ -1,5 +1,7 @@
 package tech.nathann.riot4j.queues.old;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Mono;
@@ -8,12 +10,16 @@ import reactor.netty.http.client.HttpClient;
 import tech.nathann.riot4j.enums.regions.Region;
 import tech.nathann.riot4j.exceptions.RateLimitedException;
 import tech.nathann.riot4j.exceptions.RetryableException;
+import tech.nathann.riot4j.queues.Capacity;
 import tech.nathann.riot4j.queues.FailureStrategies;
 import tech.nathann.riot4j.queues.RateLimits;
 import tech.nathann.riot4j.queues.Ratelimiter;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.HashMap;
+import java.util.Optional;
+import java.util.function.Function;
 
 /**
  * A bucket manager handles all the actual web requests of its owned buckets, and provides a convenience map so outside methods can push to buckets
@@ -90,4 +96,22 @@ public class BucketManager implements Ratelimiter {
             return bucket.push(input);
         });
     }
+
+    //the old buckets only deal in Strings, so the body pays for a copy back to bytes
+    @Override
+    public <T> Mono<T> push(RateLimits limit, Region region, HttpClient.ResponseReceiver<?> input, Function<ByteBuf, T> decoder) {
+        return push(limit, region, input)
+                .map(body -> decoder.apply(Unpooled.wrappedBuffer(body.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    //the old buckets only find out about a limit when they hit it, so there's nothing to plan with
+    @Override
+    public Optional<Capacity> getCapacity(RateLimits limit, Region region) {
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<Duration> estimate(RateLimits limit, Region region, int requests) {
+        return Optional.empty();
+    }
 }
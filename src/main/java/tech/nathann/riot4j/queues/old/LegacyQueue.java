@@ -13,7 +13,7 @@ import tech.nathann.riot4j.queues.nlimiter.Request;
 import java.time.Duration;
 
 public class LegacyQueue {
-    private final Sinks.Many<Request> in = Sinks.many().multicast().onBackpressureBuffer(1024, false);
+    private final Sinks.Many<Request<String>> in = Sinks.many().multicast().onBackpressureBuffer(1024, false);
 
     private Logger log = LoggerFactory.getLogger(LegacyQueue.class);
 
@@ -28,18 +28,18 @@ public class LegacyQueue {
     //push new item to the queue
     public Mono<String> push(HttpClient.ResponseReceiver<?> input) {
         return Mono.defer(() -> {
-                    Request r = new Request(input);
+                    Request<String> r = new Request<>(input, Request.UTF_8);
                     in.emitNext(r, FailureStrategies.RETRY_ON_SERIALIZED);
                     return r.getCallback().asMono();
                 });
     }
 
-    private Mono<String> evaluate(Request r) {
+    private Mono<String> evaluate(Request<String> r) {
         return evaluate(r, 0);
     }
 
     //processes a request. May create/handle errors
-    private Mono<String> evaluate(Request r, int attempt) {
+    private Mono<String> evaluate(Request<String> r, int attempt) {
         return r.getRequest()
                 .doOnNext(result -> r.getCallback().emitValue(result, FailureStrategies.RETRY_ON_SERIALIZED))
                 .onErrorResume(RateLimitedException.class, ratelimit -> {
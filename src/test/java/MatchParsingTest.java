@@ -0,0 +1,264 @@
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tech.nathann.riot4j.api.match.ValMatch;
+import tech.nathann.riot4j.json.Mapping;
+import tech.nathann.riot4j.json.valMatch.KillData;
+import tech.nathann.riot4j.json.valMatch.LazyMatchData;
+import tech.nathann.riot4j.json.valMatch.MatchData;
+import tech.nathann.riot4j.json.valMatch.MatchParser;
+import tech.nathann.riot4j.json.valMatch.MatchVisitor;
+import tech.nathann.riot4j.json.valMatch.PlayerData;
+import tech.nathann.riot4j.json.valMatch.PlayerRoundStatsData;
+import tech.nathann.riot4j.json.valMatch.RoundResultData;
+import tech.nathann.riot4j.objects.ValTeamId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Parses match.json, a competitive match of the same shape and size as what riot sends (10 players, 24 rounds)
+ */
+public class MatchParsingTest {
+    private static final Logger log = LoggerFactory.getLogger(MatchParsingTest.class);
+    private static byte[] match;
+
+    @BeforeAll
+    public static void readFixture() throws IOException {
+        try(InputStream in = MatchParsingTest.class.getResourceAsStream("/match.json")) {
+            match = in.readAllBytes();
+        }
+    }
+
+    @Test
+    public void bytesDecodeLikeStrings() {
+        MatchData fromString = Mapping.map(MatchData.class).apply(new String(match, StandardCharsets.UTF_8));
+
+        ByteBuf direct = PooledByteBufAllocator.DEFAULT.directBuffer(match.length).writeBytes(match);
+        try {
+            assertEquals(fromString, Mapping.decode(MatchData.class).apply(direct));
+        } finally {
+            direct.release();
+        }
+        assertEquals(fromString, Mapping.decode(MatchData.class).apply(Unpooled.wrappedBuffer(match)));
+        assertEquals(24, fromString.roundResults().size());
+    }
+
+    /**
+     * Not a real benchmark, JMH isn't set up for this project. Decodes the fixture from a direct buffer, which is what
+     * netty hands us, once through a String like responses used to be and once straight from the bytes
+     */
+    @Benchmark
+    public void decodingSkipsTheStringCopy() {
+        ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(match.length).writeBytes(match);
+        Function<String, MatchData> strings = Mapping.map(MatchData.class);
+        Function<ByteBuf, MatchData> bytes = Mapping.decode(MatchData.class);
+        try {
+            long[] viaString = measure(() -> strings.apply(body.toString(StandardCharsets.UTF_8)));
+            long[] viaBytes = measure(() -> bytes.apply(body.duplicate()));
+
+            log.info("Match of " + match.length / 1024 + "KB through a String: " + viaString[0] / 1024 + "KB allocated, " + viaString[1] / 1000 + "us");
+            log.info("Match of " + match.length / 1024 + "KB from the bytes: " + viaBytes[0] / 1024 + "KB allocated, " + viaBytes[1] / 1000 + "us");
+            //the String alone is as big as the body, so skipping it has to show
+            assertTrue(viaBytes[0] + match.length / 2 < viaString[0], "decoding from bytes allocated " + viaBytes[0] + " bytes, through a String " + viaString[0]);
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * Adds up the things a stats job would: kills, damage dealt and round wins
+     */
+    private static class Totals implements MatchVisitor {
+        private int players;
+        private final Map<String, Integer> kills = new HashMap<>();
+        private final Map<String, Integer> damage = new HashMap<>();
+        private final List<ValTeamId> winners = new ArrayList<>();
+        private int assists;
+
+        @Override
+        public void player(PlayerData player) {
+            players++;
+        }
+
+        @Override
+        public void kill(Kill kill) {
+            kills.merge(kill.getKiller(), 1, Integer::sum);
+            assists += kill.getAssistants().size();
+        }
+
+        @Override
+        public void damage(Damage event) {
+            damage.merge(event.getDealer(), event.getDamage(), Integer::sum);
+        }
+
+        @Override
+        public void round(Round round) {
+            winners.add(round.getWinningTeam());
+        }
+    }
+
+    @Test
+    public void visitorSeesWhatTheTreeHas() {
+        MatchData tree = Mapping.map(MatchData.class).apply(new String(match, StandardCharsets.UTF_8));
+        Totals totals = MatchParser.visit(Unpooled.wrappedBuffer(match), new Totals());
+
+        List<KillData> kills = tree.roundResults().stream()
+                .flatMap(round -> round.playerStats().stream())
+                .flatMap(stats -> stats.kills().stream())
+                .collect(Collectors.toList());
+        Map<String, Integer> damage = new HashMap<>();
+        for(RoundResultData round: tree.roundResults()) {
+            for(PlayerRoundStatsData stats: round.playerStats()) {
+                stats.damage().forEach(dealt -> damage.merge(stats.puuid(), dealt.damage(), Integer::sum));
+            }
+        }
+
+        assertEquals(tree.players().size(), totals.players);
+        assertEquals(kills.stream().collect(Collectors.toMap(KillData::killer, kill -> 1, Integer::sum)), totals.kills);
+        assertEquals(kills.stream().mapToInt(kill -> kill.assistants().size()).sum(), totals.assists);
+        assertEquals(damage, totals.damage);
+        assertEquals(tree.roundResults().stream().map(RoundResultData::winningTeam).collect(Collectors.toList()), totals.winners);
+    }
+
+    @Test
+    public void visitorWalksNullLists() {
+        String json = "{\"matchInfo\": null, \"players\": null, \"coaches\": [], \"roundResults\": [" +
+                "{\"roundNum\": 0, \"playerStats\": [{\"puuid\": \"a\", \"kills\": null, \"damage\": null, \"economy\": null}], \"winningTeam\": \"Red\"}," +
+                "{\"roundNum\": 1, \"playerStats\": null, \"winningTeam\": \"Blue\"}]}";
+        Totals totals = MatchParser.visit(Unpooled.wrappedBuffer(json.getBytes(StandardCharsets.UTF_8)), new Totals());
+
+        assertEquals(List.of(ValTeamId.RED, ValTeamId.BLUE), totals.winners);
+        assertTrue(totals.kills.isEmpty());
+    }
+
+    @Test
+    public void nullElementsDontEndTheirList() {
+        String json = "{\"players\": [null], \"roundResults\": [null," +
+                "{\"roundNum\": 0, \"winningTeam\": \"Red\", \"playerStats\": [null, {\"puuid\": \"a\"," +
+                "\"kills\": [null, {\"killer\": \"a\", \"assistants\": [null, \"b\"]}, {\"killer\": \"a\"}]," +
+                "\"damage\": [null, {\"receiver\": \"b\", \"damage\": 50}, {\"receiver\": \"c\", \"damage\": 25}]}]}," +
+                "null, {\"roundNum\": 1, \"winningTeam\": \"Blue\"}]}";
+        Totals totals = MatchParser.visit(Unpooled.wrappedBuffer(json.getBytes(StandardCharsets.UTF_8)), new Totals());
+
+        assertEquals(0, totals.players);
+        assertEquals(List.of(ValTeamId.RED, ValTeamId.BLUE), totals.winners);
+        assertEquals(Map.of("a", 2), totals.kills);
+        assertEquals(1, totals.assists);
+        assertEquals(Map.of("a", 75), totals.damage);
+
+        LazyMatchData lazy = LazyMatchData.decode(Unpooled.wrappedBuffer(json.getBytes(StandardCharsets.UTF_8)));
+        assertTrue(lazy.players().isEmpty());
+        assertEquals(2, lazy.roundResults().size());
+    }
+
+    /**
+     * Not a real benchmark either. A stats job reading the whole tree next to the same job as a visitor
+     */
+    @Benchmark
+    public void visitingSkipsTheTree() {
+        ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(match.length).writeBytes(match);
+        Function<ByteBuf, MatchData> tree = Mapping.decode(MatchData.class);
+        try {
+            long[] viaTree = measure(() -> tree.apply(body.duplicate()));
+            long[] viaVisitor = measure(() -> MatchParser.visit(body.duplicate(), new Totals()));
+
+            log.info("Match of " + match.length / 1024 + "KB as a tree: " + viaTree[0] / 1024 + "KB allocated, " + viaTree[1] / 1000 + "us");
+            log.info("Match of " + match.length / 1024 + "KB visited: " + viaVisitor[0] / 1024 + "KB allocated, " + viaVisitor[1] / 1000 + "us");
+            assertTrue(viaVisitor[0] * 4 < viaTree[0], "visiting allocated " + viaVisitor[0] + " bytes, the tree " + viaTree[0]);
+        } finally {
+            body.release();
+        }
+    }
+
+    @Test
+    public void lazyRoundsParseWhenRead() {
+        MatchData tree = Mapping.map(MatchData.class).apply(new String(match, StandardCharsets.UTF_8));
+        ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(match.length).writeBytes(match);
+        LazyMatchData lazy = LazyMatchData.decode(body);
+        body.release(); //rounds were copied out
+
+        ValMatch eager = new ValMatch(tree);
+        ValMatch summary = new ValMatch(lazy);
+        String puuid = tree.players().get(0).puuid();
+        assertEquals(eager.resultFor(puuid), summary.resultFor(puuid));
+        assertEquals(eager.scoreLine(tree.players().get(0)), summary.scoreLine(lazy.players().get(0)));
+        assertEquals(eager.getMatchMVP(), summary.getMatchMVP());
+        assertEquals(24, lazy.roundResults().size());
+        assertEquals(0, lazy.parsedRounds());
+
+        assertEquals(tree.roundResults().get(3), lazy.roundResults().get(3));
+        assertEquals(1, lazy.parsedRounds());
+        assertEquals(eager.numPlants(ValTeamId.BLUE), summary.numPlants(ValTeamId.BLUE));
+        assertEquals(tree.roundResults(), lazy.roundResults());
+        assertEquals(24, lazy.parsedRounds());
+    }
+
+    /**
+     * Not a real benchmark either. What a list view of matches pays to decode and then hold on to them
+     */
+    @Benchmark
+    public void lazyMatchesAreSmaller() {
+        ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(match.length).writeBytes(match);
+        Function<ByteBuf, MatchData> tree = Mapping.decode(MatchData.class);
+        try {
+            long[] viaTree = measure(() -> tree.apply(body.duplicate()));
+            long[] viaLazy = measure(() -> LazyMatchData.decode(body.duplicate()));
+            long heldTree = held(() -> tree.apply(body.duplicate()));
+            long heldLazy = held(() -> LazyMatchData.decode(body.duplicate()));
+
+            log.info("Match of " + match.length / 1024 + "KB as a tree: " + viaTree[0] / 1024 + "KB allocated, " + viaTree[1] / 1000 + "us, " + heldTree / 1024 + "KB held");
+            log.info("Match of " + match.length / 1024 + "KB with lazy rounds: " + viaLazy[0] / 1024 + "KB allocated, " + viaLazy[1] / 1000 + "us, " + heldLazy / 1024 + "KB held");
+            assertTrue(viaLazy[0] * 2 < viaTree[0], "a lazy match allocated " + viaLazy[0] + " bytes, the tree " + viaTree[0]);
+        } finally {
+            body.release();
+        }
+    }
+
+    //rough heap each decoded match keeps alive, from the used heap before and after holding a few of them
+    private static long held(Supplier<MatchData> decode) {
+        int count = 20;
+        List<MatchData> matches = new ArrayList<>();
+        long before = used();
+        for(int i = 0; i < count; i++) matches.add(decode.get());
+        long after = used();
+        assertEquals(count, matches.size()); //keeps them reachable until here
+        return (after - before) / count;
+    }
+
+    private static long used() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    //bytes allocated and nanos taken per decode, after a warm up
+    private static long[] measure(Runnable decode) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int runs = 200;
+        for(int i = 0; i < runs; i++) decode.run();
+
+        long bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        for(int i = 0; i < runs; i++) decode.run();
+        long nanos = System.nanoTime() - start;
+        bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+        return new long[]{bytes / runs, nanos / runs};
+    }
+}
@@ -0,0 +1,1124 @@
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.http.server.HttpServer;
+import tech.nathann.riot4j.clients.RequestCoalescer;
+import tech.nathann.riot4j.enums.regions.ValRegion;
+import tech.nathann.riot4j.exceptions.DeadlineExceededException;
+import tech.nathann.riot4j.exceptions.JsonException;
+import tech.nathann.riot4j.exceptions.LoadShedException;
+import tech.nathann.riot4j.exceptions.RetryableException;
+import tech.nathann.riot4j.json.Mapping;
+import tech.nathann.riot4j.json.valMatch.MatchData;
+import tech.nathann.riot4j.queues.Capacity;
+import tech.nathann.riot4j.queues.OverflowPolicy;
+import tech.nathann.riot4j.queues.Deadline;
+import tech.nathann.riot4j.queues.Priority;
+import tech.nathann.riot4j.queues.RateLimits;
+import tech.nathann.riot4j.queues.RetryBudget;
+import tech.nathann.riot4j.queues.Tenant;
+import tech.nathann.riot4j.queues.TokenPool;
+import tech.nathann.riot4j.queues.nlimiter.ConcurrencyLimit;
+import tech.nathann.riot4j.queues.nlimiter.Dispenser;
+import tech.nathann.riot4j.queues.nlimiter.LimiterTimer;
+import tech.nathann.riot4j.queues.nlimiter.ProactiveRatelimiter;
+import tech.nathann.riot4j.queues.nlimiter.RatePresets;
+import tech.nathann.riot4j.queues.nlimiter.RateWindow;
+import tech.nathann.riot4j.queues.nlimiter.Request;
+import tech.nathann.riot4j.queues.nlimiter.Ticket;
+import tech.nathann.riot4j.queues.nlimiter.WindowStore;
+import tech.nathann.riot4j.queues.old.BucketManager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the limiter against a local stub server so no api key is needed
+ */
+public class RatelimiterTest {
+    private static final Logger log = LoggerFactory.getLogger(RatelimiterTest.class);
+    private static final List<ValRegion> regions = Arrays.asList(
+            ValRegion.NORTH_AMERICA,
+            ValRegion.EUROPE,
+            ValRegion.ASIA_PACIFIC,
+            ValRegion.KOREA,
+            ValRegion.BRAZIL,
+            ValRegion.LATIN_AMERICA
+    );
+
+    private static DisposableServer server;
+    private static final Scheduler workers = Schedulers.newParallel("stub-workers", 2);
+    private static final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+    private static final HttpClient client = HttpClient.create();
+    private static byte[] match;
+
+    @BeforeAll
+    public static void startServer() throws IOException {
+        try(InputStream in = RatelimiterTest.class.getResourceAsStream("/match.json")) {
+            match = in.readAllBytes();
+        }
+        server = HttpServer.create()
+                .port(0)
+                .handle((request, response) -> {
+                    //pretend the key behind /raised has much higher limits than the dev defaults
+                    if(request.uri().startsWith("/raised")) {
+                        response.header("X-App-Rate-Limit", "200:1,2000:120");
+                        response.header("X-Method-Rate-Limit", "20000:10");
+                    }
+                    //riot counted more calls to the key behind /counted than we made, as if another process used it too
+                    if(request.uri().startsWith("/counted")) {
+                        response.header("X-App-Rate-Limit-Count", "15:1,15:120");
+                    }
+                    //the first request to a once path gets a 429 of the type in its path, service 429s come without headers
+                    if(request.uri().startsWith("/once/") && hits.computeIfAbsent(request.uri(), key -> new AtomicInteger()).getAndIncrement() == 0) {
+                        String type = request.uri().split("/")[2];
+                        if(!type.equals("service")) response.header("Retry-After", "1").header("X-Rate-Limit-Type", type);
+                        return response.status(429).send();
+                    }
+                    //a busy path is served by two workers, so its latency grows with how many calls are waiting
+                    if(request.uri().contains("/busy")) {
+                        return response.sendString(Mono.fromCallable(() -> {
+                            Thread.sleep(20);
+                            return "{}";
+                        }).subscribeOn(workers));
+                    }
+                    //a match path answers with a whole match, see MatchParsingTest
+                    if(request.uri().startsWith("/match")) {
+                        return response.send(Mono.fromCallable(() -> Unpooled.wrappedBuffer(match)));
+                    }
+                    //an outage path fails every request with a 500
+                    if(request.uri().startsWith("/outage")) {
+                        hits.computeIfAbsent("/outage", key -> new AtomicInteger()).incrementAndGet();
+                        return response.status(500).send();
+                    }
+                    //every tenth request to a flaky path gets a method 429
+                    if(request.uri().startsWith("/flaky") && hits.computeIfAbsent(request.uri(), key -> new AtomicInteger()).getAndIncrement() % 10 == 0) {
+                        return response.status(429)
+                                .header("Retry-After", "1")
+                                .header("X-Rate-Limit-Type", "method")
+                                .send();
+                    }
+                    return response.sendString(Mono.just("{}"));
+                })
+                .bindNow();
+    }
+
+    @AfterAll
+    public static void stopServer() {
+        server.disposeNow();
+        workers.dispose();
+    }
+
+    private static HttpClient.ResponseReceiver<?> stub(ValRegion region) {
+        return client.get().uri("http://localhost:" + server.port() + "/" + region);
+    }
+
+    private static HttpClient.ResponseReceiver<?> raised(ValRegion region) {
+        return client.get().uri("http://localhost:" + server.port() + "/raised/" + region);
+    }
+
+    private static HttpClient.ResponseReceiver<?> flaky(ValRegion region) {
+        return client.get().uri("http://localhost:" + server.port() + "/flaky/" + region);
+    }
+
+    private static HttpClient.ResponseReceiver<?> once(String type, ValRegion region) {
+        return client.get().uri("http://localhost:" + server.port() + "/once/" + type + "/" + region);
+    }
+
+    //millis from subscribing to a push until its response
+    private static Mono<Long> elapsed(Mono<String> push) {
+        return push.then(Mono.just(0L))
+                .elapsed()
+                .map(timed -> timed.getT1());
+    }
+
+    private static ProactiveRatelimiter devLimiter() {
+        return new ProactiveRatelimiter(
+                RateLimits.RIOT4J_DEV_MASTER,
+                RateLimits.RIOT4J_DEV_SECONDARY,
+                List.of(RateLimits.VAL_STATUS)
+        );
+    }
+
+    //pushes perRegion requests to every region and returns how long it took for all of them to come back
+    private static Duration timeWorkload(ProactiveRatelimiter limiter, List<ValRegion> regions, int perRegion) {
+        long start = System.nanoTime();
+        long count = Flux.fromIterable(regions)
+                .flatMap(region -> Flux.range(0, perRegion)
+                        .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, region, stub(region))))
+                .count()
+                .block(Duration.ofMinutes(1));
+        assertEquals((long) regions.size() * perRegion, count);
+        return Duration.ofNanos(System.nanoTime() - start);
+    }
+
+    @Benchmark
+    public void appLimitsScalePerRegion() {
+        //two master windows worth of requests per region (dev master is 20 per second)
+        int perRegion = RateLimits.RIOT4J_DEV_MASTER.getCount() * 2;
+
+        Duration single = timeWorkload(devLimiter(), regions.subList(0, 1), perRegion);
+        Duration six = timeWorkload(devLimiter(), regions, perRegion);
+
+        log.info("1 region: " + perRegion + " requests in " + single.toMillis() + "ms");
+        log.info("6 regions: " + perRegion * 6 + " requests in " + six.toMillis() + "ms");
+
+        //a shared app budget would take six times as long, per region budgets should stay close to the single region time
+        assertTrue(six.toMillis() < single.toMillis() * 2 + 500, "six region workload did not scale with region count");
+    }
+
+    @Test
+    public void headersRaiseLimits() {
+        ProactiveRatelimiter limiter = devLimiter();
+        int total = RateLimits.RIOT4J_DEV_MASTER.getCount() * 5;
+
+        long start = System.nanoTime();
+        long count = Flux.range(0, total)
+                .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, raised(ValRegion.NORTH_AMERICA)))
+                .count()
+                .block(Duration.ofMinutes(1));
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        log.info(total + " requests with raised headers in " + elapsed.toMillis() + "ms");
+        assertEquals(total, count);
+        //the static dev limit would need at least four more seconds for this many requests
+        assertTrue(elapsed.toMillis() < 2500, "limiter did not pick up the raised app limit");
+    }
+
+    @Test
+    public void windowRunsDryAtItsCount() {
+        //the biggest window we ship with, one primitive slot per permit
+        Dispenser dispenser = new Dispenser(RateLimits.RIOT4J_PROD_SECONDARY, ValRegion.NORTH_AMERICA);
+        for(int i = 0; i < RateLimits.RIOT4J_PROD_SECONDARY.getCount(); i++) {
+            Ticket ticket = dispenser.tryAcquire();
+            assertNotNull(ticket);
+            ticket.release();
+        }
+
+        assertNull(dispenser.tryAcquire(), "window should be exhausted");
+        assertTrue(dispenser.acquireAt().isAfter(Instant.now()));
+    }
+
+    @Benchmark
+    public void ticketCost() {
+        Dispenser dispenser = new Dispenser(RateLimits.RIOT4J_PROD_SECONDARY, ValRegion.NORTH_AMERICA);
+        int rounds = RateLimits.RIOT4J_PROD_SECONDARY.getCount();
+
+        long start = System.nanoTime();
+        for(int i = 0; i < rounds; i++) {
+            dispenser.tryAcquire().release();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        log.info("Acquire + release: " + elapsed / rounds + "ns per ticket");
+    }
+
+    private static Duration timePool(TokenPool pool, int total) {
+        long start = System.nanoTime();
+        long count = Flux.range(0, total)
+                .flatMap(i -> pool.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, token -> client
+                        .headers(headers -> headers.add("X-Riot-Token", token))
+                        .get()
+                        .uri("http://localhost:" + server.port() + "/pool")))
+                .count()
+                .block(Duration.ofMinutes(1));
+        assertEquals(total, count);
+        return Duration.ofNanos(System.nanoTime() - start);
+    }
+
+    @Test
+    public void tokenPoolCountsEveryKey() {
+        TokenPool one = new TokenPool(List.of("first"), RatePresets::dev);
+        TokenPool two = new TokenPool(List.of("first", "second"), RatePresets::dev);
+
+        int single = one.getCapacity(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA).orElseThrow().getAvailable();
+        assertEquals(single * 2, two.getCapacity(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA).orElseThrow().getAvailable());
+    }
+
+    @Benchmark
+    public void tokenPoolSpreadsKeys() {
+        int total = RateLimits.RIOT4J_DEV_MASTER.getCount() * 4;
+
+        Duration one = timePool(new TokenPool(List.of("first"), RatePresets::dev), total);
+        Duration two = timePool(new TokenPool(List.of("first", "second"), RatePresets::dev), total);
+
+        log.info(total + " requests over 1 key in " + one.toMillis() + "ms, over 2 keys in " + two.toMillis() + "ms");
+        //one key needs four master windows for this, two keys need two
+        assertTrue(two.toMillis() < one.toMillis() * 3 / 4, "keys did not get independent budgets");
+    }
+
+    @Test
+    public void tokenPoolReachesEveryKey() {
+        TokenPool pool = new TokenPool(List.of("first", "second", "third"), RatePresets::dev);
+        List<String> used = Collections.synchronizedList(new ArrayList<>());
+
+        long count = pool.pushEach(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, token -> {
+                    used.add(token);
+                    return stub(ValRegion.NORTH_AMERICA);
+                }, Request.UTF_8)
+                .count()
+                .block(Duration.ofSeconds(10));
+
+        assertEquals(3, count);
+        assertEquals(List.of("first", "second", "third"), used);
+    }
+
+    @Test
+    public void interactiveJumpsBackground() {
+        ProactiveRatelimiter limiter = devLimiter();
+        int background = RateLimits.RIOT4J_DEV_MASTER.getCount() * 3;
+
+        Flux.range(0, background)
+                .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)))
+                .contextWrite(Priority.BACKGROUND.context())
+                .subscribe();
+
+        long start = System.nanoTime();
+        limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA))
+                .contextWrite(Priority.INTERACTIVE.context())
+                .block(Duration.ofMinutes(1));
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        log.info("Interactive request behind " + background + " background requests took " + elapsed.toMillis() + "ms");
+        log.info("Interactive lane: " + limiter.getLatency(Priority.INTERACTIVE));
+        //in a single lane it would wait for the fourth master window
+        assertTrue(elapsed.toMillis() < 2000, "interactive request waited behind background requests");
+        assertEquals(1, limiter.getLatency(Priority.INTERACTIVE).count());
+    }
+
+    @Test
+    public void tenantsShareTheLimit() {
+        ProactiveRatelimiter limiter = devLimiter();
+        int sweep = RateLimits.RIOT4J_DEV_MASTER.getCount() * 4;
+        int other = 10;
+
+        Flux<String> sweeping = Flux.range(0, sweep)
+                .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)))
+                .contextWrite(Tenant.of("sweep").context());
+        Flux<String> others = Flux.range(0, other)
+                .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)))
+                .contextWrite(Tenant.of("other").context());
+
+        //the sweep is queued first, so with one queue every other request would wait for the whole sweep
+        long count = Flux.merge(sweeping, others.delaySubscription(Duration.ofMillis(100)))
+                .count()
+                .block(Duration.ofMinutes(1));
+
+        Duration worst = limiter.getWaits("other").percentile(1);
+        log.info("sweep: " + limiter.getWaits("sweep") + ", other: " + limiter.getWaits("other"));
+        assertEquals(sweep + other, count);
+        assertEquals(other, limiter.getWaits("other").count());
+        assertTrue(worst.toMillis() < 2000, "other tenant waited behind the sweep");
+    }
+
+    @Test
+    public void boundedQueuesUnderOverload() {
+        int capacity = 50;
+        for(OverflowPolicy policy: OverflowPolicy.values()) {
+            ProactiveRatelimiter limiter = devLimiter().bound(RateLimits.RIOT4J_DEV_MASTER, capacity, policy);
+            //100x what the master limit allows in a second, backpressure has to serve all of them so it uses the raised key
+            boolean backpressure = policy == OverflowPolicy.BACKPRESSURE;
+            int pushed = backpressure ? 1000 : RateLimits.RIOT4J_DEV_MASTER.getCount() * 100;
+
+            System.gc();
+            long baseline = usedHeap();
+            AtomicInteger maxQueued = new AtomicInteger();
+            AtomicInteger shed = new AtomicInteger();
+            long maxHeap = Flux.interval(Duration.ofMillis(5))
+                    .map(tick -> {
+                        maxQueued.accumulateAndGet(limiter.getQueued(RateLimits.RIOT4J_DEV_MASTER, ValRegion.NORTH_AMERICA), Math::max);
+                        return usedHeap();
+                    })
+                    .takeUntilOther(Flux.range(0, pushed)
+                            .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, backpressure ? raised(ValRegion.NORTH_AMERICA) : stub(ValRegion.NORTH_AMERICA))
+                                    .onErrorResume(LoadShedException.class, e -> {
+                                        shed.incrementAndGet();
+                                        return Mono.empty();
+                                    }), pushed)
+                            .then())
+                    .reduce(baseline, Math::max)
+                    .block(Duration.ofMinutes(1));
+
+            log.info(policy + ": shed " + shed + " of " + pushed + ", most queued " + maxQueued
+                    + ", heap grew " + (maxHeap - baseline) / 1024 / 1024 + "MB");
+            //the bound is soft, producers racing a full queue may push it over by a few
+            assertTrue(maxQueued.get() <= capacity + capacity / 10, policy + " queued past its capacity: " + maxQueued);
+            if(backpressure) assertEquals(0, shed.get());
+            else assertTrue(shed.get() >= pushed - capacity * 10, policy + " didn't shed the overload");
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void rateLimitPausesOnlyItsBucket() {
+        ProactiveRatelimiter limiter = new ProactiveRatelimiter(
+                RateLimits.RIOT4J_DEV_MASTER,
+                RateLimits.RIOT4J_DEV_SECONDARY,
+                List.of(RateLimits.VAL_STATUS, RateLimits.VAL_MATCH)
+        );
+        hits.clear();
+
+        //the first flaky call gets a 429, so this match request waits out a one second pause and retries
+        Mono<Long> limited = limiter.push(RateLimits.VAL_MATCH, ValRegion.ASIA_PACIFIC, flaky(ValRegion.ASIA_PACIFIC))
+                .then(Mono.just(0L))
+                .elapsed()
+                .map(timed -> timed.getT1());
+        //same region and other regions on other limits keep going
+        Mono<Long> others = Flux.fromIterable(List.of(ValRegion.ASIA_PACIFIC, ValRegion.NORTH_AMERICA, ValRegion.EUROPE))
+                .flatMap(region -> Flux.range(0, 5)
+                        .delayElements(Duration.ofMillis(50))
+                        .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, region, stub(region))))
+                .then(Mono.just(0L))
+                .elapsed()
+                .map(timed -> timed.getT1());
+
+        List<Long> times = Flux.merge(limited, others).collectList().block(Duration.ofMinutes(1));
+        long limitedMillis = times.stream().mapToLong(Long::longValue).max().getAsLong();
+        long othersMillis = times.stream().mapToLong(Long::longValue).min().getAsLong();
+        log.info("Rate limited request took " + limitedMillis + "ms, everything else " + othersMillis + "ms");
+        assertTrue(limitedMillis >= 1000, "the 429 didn't pause its bucket");
+        assertTrue(othersMillis < 1000, "the 429 paused other buckets");
+    }
+
+    @Test
+    public void rateLimitScopes() {
+        ProactiveRatelimiter limiter = new ProactiveRatelimiter(
+                RateLimits.RIOT4J_DEV_MASTER,
+                RateLimits.RIOT4J_DEV_SECONDARY,
+                List.of(RateLimits.VAL_STATUS, RateLimits.VAL_MATCH)
+        );
+        hits.clear();
+
+        //an app 429 holds up every method in its region but nothing elsewhere, a service 429 without any headers backs
+        //off only the request that got it. The later requests go out once the 429s are in
+        limiter.push(RateLimits.VAL_STATUS, ValRegion.BRAZIL, stub(ValRegion.BRAZIL)).block(Duration.ofMinutes(1)); //warm up connections
+        Duration later = Duration.ofMillis(300);
+        List<Long> times = Flux.mergeSequential(
+                elapsed(limiter.push(RateLimits.VAL_MATCH, ValRegion.ASIA_PACIFIC, once("application", ValRegion.ASIA_PACIFIC))),
+                Mono.delay(later).then(elapsed(limiter.push(RateLimits.VAL_STATUS, ValRegion.ASIA_PACIFIC, stub(ValRegion.ASIA_PACIFIC)))),
+                Mono.delay(later).then(elapsed(limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)))),
+                elapsed(limiter.push(RateLimits.VAL_MATCH, ValRegion.EUROPE, once("service", ValRegion.EUROPE))),
+                Mono.delay(later).then(elapsed(limiter.push(RateLimits.VAL_MATCH, ValRegion.EUROPE, stub(ValRegion.EUROPE))))
+        ).collectList().block(Duration.ofMinutes(1));
+        long app = times.get(0), sameRegion = times.get(1), otherRegion = times.get(2), service = times.get(3), sameMethod = times.get(4);
+
+        log.info("app 429: " + app + "ms, same region: " + sameRegion + "ms, other region: " + otherRegion
+                + "ms, service 429: " + service + "ms, same method: " + sameMethod + "ms");
+        assertTrue(app >= 1000, "app 429 wasn't retried after its pause");
+        assertTrue(sameRegion >= 500, "app 429 didn't pause its region");
+        assertTrue(otherRegion < 500, "app 429 paused another region");
+        assertTrue(service >= 1000, "service 429 wasn't backed off");
+        assertTrue(sameMethod < 500, "service 429 paused its whole bucket");
+    }
+
+    @Test
+    public void cancelDuringBackoffStopsRetries() throws InterruptedException {
+        ProactiveRatelimiter limiter = devLimiter().retryBudget(new RetryBudget(0.1, 5, Duration.ofMillis(300), Duration.ofSeconds(1), false));
+        hits.clear();
+
+        Disposable subscription = limiter.push(RateLimits.VAL_STATUS, ValRegion.EUROPE, client.get().uri("http://localhost:" + server.port() + "/outage/cancelled")).subscribe(value -> {}, error -> {});
+        long start = System.nanoTime();
+        while(!hits.containsKey("/outage") && System.nanoTime() - start < 5_000_000_000L) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, hits.get("/outage").get());
+
+        //the first try failed and is sleeping at least 300ms before its retry
+        Thread.sleep(100);
+        subscription.dispose();
+        Thread.sleep(1500);
+        assertEquals(1, hits.get("/outage").get(), "a cancelled request was retried");
+    }
+
+    @Test
+    public void retryBudgetStopsStorms() {
+        int burst = 5;
+        RetryBudget budget = new RetryBudget(0.1, burst, Duration.ofMillis(10), Duration.ofMillis(100), true);
+        ProactiveRatelimiter limiter = devLimiter().retryBudget(budget);
+        hits.clear();
+
+        int successes = 20;
+        Flux.range(0, successes)
+                .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)))
+                .blockLast(Duration.ofMinutes(1));
+        assertEquals(burst, budget.getBalance(), 0.001); //a full budget doesn't grow
+
+        int failing = 40;
+        long failed = Flux.range(0, failing)
+                .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.EUROPE, client.get().uri("http://localhost:" + server.port() + "/outage/" + i))
+                        .then(Mono.just(false))
+                        .onErrorResume(e -> Mono.just(true)))
+                .filter(failure -> failure)
+                .count()
+                .block(Duration.ofMinutes(1));
+
+        int calls = hits.get("/outage").get();
+        log.info(failing + " requests during an outage made " + calls + " calls, budget left " + budget);
+        assertEquals(failing, failed);
+        //without a budget every request would try 9 times
+        assertTrue(calls <= failing + burst, "retries went past the budget");
+
+        for(int i = 0; i < 100; i++) {
+            long sleep = budget.backoff(Duration.ofMillis(i)).toMillis();
+            assertTrue(sleep >= 10 && sleep <= 100, "jitter left its bounds: " + sleep);
+        }
+
+        //first retries of requests that failed together mustn't all sleep the base
+        List<Long> first = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            long sleep = budget.backoff(Duration.ZERO).toMillis();
+            assertTrue(sleep >= 10 && sleep <= 30, "first jitter left its bounds: " + sleep);
+            first.add(sleep);
+        }
+        assertTrue(first.stream().distinct().count() > 5, "first retries came back in lockstep: " + first);
+    }
+
+    @Test
+    public void concurrencyFollowsLatency() {
+        ProactiveRatelimiter limiter = devLimiter();
+        int pushed = 400;
+
+        //learn how fast the host is when it's quiet, then slow it down
+        Flux.range(0, 10)
+                .concatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, client.get().uri("http://localhost:" + server.port() + "/raised/busy/warmup")))
+                .blockLast(Duration.ofMinutes(1));
+
+        //riot can answer 100 calls a second here while our raised limits let 200 through
+        long count = Flux.range(0, pushed)
+                .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, client.get().uri("http://localhost:" + server.port() + "/raised/busy/" + i)))
+                .count()
+                .block(Duration.ofMinutes(1));
+
+        ConcurrencyLimit limit = limiter.getConcurrency(ValRegion.NORTH_AMERICA);
+        log.info("Slow host: " + limit + ", call latency " + limit.getLatency());
+        assertEquals(pushed, count);
+        //with every call let through at once they would queue on the host for seconds
+        assertTrue(limit.getLatency().percentile(0.99).toMillis() < 400, "calls piled up on the slow host");
+        assertTrue(limit.getLimit() < 20, "the limit didn't come down");
+    }
+
+    @Test
+    public void onlyOverloadCutsConcurrency() {
+        ConcurrencyLimit limit = new ConcurrencyLimit();
+        int before = limit.getLimit();
+
+        //answers riot gave just fine, or that we couldn't read, aren't samples at all
+        for(int i = 0; i < 50; i++) {
+            limit.run(Mono.error(new JsonException(new IOException("bad body")))).onErrorResume(error -> Mono.empty()).block();
+            limit.run(Mono.error(new IllegalStateException())).onErrorResume(error -> Mono.empty()).block();
+        }
+        assertEquals(before, limit.getLimit());
+        assertEquals(0, limit.getLatency().count());
+
+        limit.run(Mono.error(new RetryableException(new IOException("bad gateway")))).onErrorResume(error -> Mono.empty()).block();
+        assertTrue(limit.getLimit() < before, "a retryable error didn't cut the limit");
+        assertEquals(1, limit.getLatency().count());
+    }
+
+    @Test
+    public void droppedCallsArentSampled() {
+        ConcurrencyLimit limit = new ConcurrencyLimit();
+        Flux.range(0, 300)
+                .flatMap(i -> limit.run(Mono.delay(Duration.ofMillis(20))), 64)
+                .blockLast(Duration.ofMinutes(1));
+        int before = limit.getLimit();
+        long samples = limit.getLatency().count();
+
+        //a call that lost the race to a cancel completes empty, it must not become the fastest call we've seen
+        limit.run(Mono.empty()).block();
+        assertEquals(before, limit.getLimit());
+        assertEquals(samples, limit.getLatency().count());
+        Flux.range(0, 50)
+                .flatMap(i -> limit.run(Mono.delay(Duration.ofMillis(20))), 64)
+                .blockLast(Duration.ofMinutes(1));
+        assertTrue(limit.getLimit() >= before / 2, "the limit fell from " + before + " to " + limit.getLimit());
+    }
+
+    @Test
+    public void cancelBetweenGrantAndSendKeepsTheLimit() throws InterruptedException {
+        ProactiveRatelimiter limiter = devLimiter();
+        Flux.range(0, 20)
+                .concatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)))
+                .blockLast(Duration.ofMinutes(1));
+        ConcurrencyLimit limit = limiter.getConcurrency(ValRegion.NORTH_AMERICA);
+        int before = limit.getLimit();
+        long samples = limit.getLatency().count();
+
+        //every slot is taken, so the next request gets its tickets and then waits to be sent
+        List<Disposable> blockers = new ArrayList<>();
+        for(int i = 0; i < before; i++) {
+            blockers.add(limit.run(Mono.never()).subscribe());
+        }
+        Disposable waiting = limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)).subscribe(value -> {}, error -> {});
+        Thread.sleep(100);
+        waiting.dispose();
+        blockers.forEach(Disposable::dispose);
+        Thread.sleep(100);
+
+        assertEquals(before, limit.getLimit());
+        assertEquals(samples, limit.getLatency().count());
+        assertEquals(0, limit.getInFlight());
+    }
+
+    /**
+     * Not a real benchmark either. Queues 100k requests behind the dev app limit and shows what they cost the
+     * scheduler: one wakeup per dispenser instead of one timer per request
+     */
+    @Test
+    public void hundredThousandPending() {
+        ProactiveRatelimiter limiter = devLimiter();
+        int pending = 100_000;
+        long timersBefore = LimiterTimer.pending();
+
+        long start = System.nanoTime();
+        List<Disposable> subscriptions = new ArrayList<>(pending);
+        for(int i = 0; i < pending; i++) {
+            ValRegion region = regions.get(i % regions.size());
+            subscriptions.add(limiter.push(RateLimits.VAL_STATUS, region, stub(region)).subscribe());
+        }
+        Duration pushing = Duration.ofNanos(System.nanoTime() - start);
+
+        long queued = regions.stream().mapToLong(region -> limiter.getQueued(RateLimits.RIOT4J_DEV_MASTER, region)).sum();
+        long timers = LimiterTimer.pending() - timersBefore;
+        log.info(pending + " pushes took " + pushing.toMillis() + "ms (" + pushing.toNanos() / pending
+                + "ns each), " + queued + " queued behind " + timers + " timers");
+        subscriptions.forEach(Disposable::dispose);
+
+        assertTrue(queued > pending * 9 / 10, "requests weren't held by the app limit");
+        assertTrue(timers <= regions.size(), "waiting requests each scheduled their own timer");
+    }
+
+    /**
+     * Not a real benchmark either. Pushes from 1, 8 and 64 threads at once into one region, where every push goes
+     * through the same pipeline. Requests queue behind the app limit, so this is the cost of getting into the queue
+     */
+    @Test
+    public void pushThroughputByProducers() throws Exception {
+        int pushes = 64_000;
+        for(int producers: new int[]{1, 8, 64}) {
+            ProactiveRatelimiter limiter = devLimiter();
+            List<Disposable> subscriptions = Collections.synchronizedList(new ArrayList<>(pushes));
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for(int i = 0; i < producers; i++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for(int j = 0; j < pushes / producers; j++) {
+                        subscriptions.add(limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)).subscribe());
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+
+            long begin = System.nanoTime();
+            start.countDown();
+            for(Thread thread: threads) {
+                thread.join();
+            }
+            Duration elapsed = Duration.ofNanos(System.nanoTime() - begin);
+            int queued = limiter.getCapacity(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA).orElseThrow().getQueued();
+            subscriptions.forEach(Disposable::dispose);
+
+            log.info(producers + " producers: " + pushes + " pushes in " + elapsed.toMillis() + "ms, "
+                    + pushes * 1_000_000_000L / Math.max(elapsed.toNanos(), 1) + " pushes/s");
+            //every push made it into the queue, only the two minute window's worth may have been sent
+            assertTrue(queued >= pushes - RateLimits.RIOT4J_DEV_SECONDARY.getCount(), "only " + queued + " queued");
+        }
+    }
+
+    /**
+     * Not a real benchmark either, but the number to watch for the cost of a push. Counts the bytes this thread
+     * allocates to push a request that queues behind the app limit, which is everything but the http call itself
+     */
+    @Benchmark
+    public void bytesPerPush() {
+        ProactiveRatelimiter limiter = devLimiter();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        HttpClient.ResponseReceiver<?> request = stub(ValRegion.NORTH_AMERICA);
+        int pushes = 50_000;
+
+        List<Disposable> subscriptions = new ArrayList<>(pushes * 2);
+        for(int i = 0; i < pushes; i++) { //warm up, and use up the window so everything after this queues
+            subscriptions.add(limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, request).subscribe());
+        }
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for(int i = 0; i < pushes; i++) {
+            subscriptions.add(limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, request).subscribe());
+        }
+        long perPush = (threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / pushes;
+        subscriptions.forEach(Disposable::dispose);
+
+        log.info(perPush + " bytes allocated per queued push");
+        assertTrue(perPush < 2048, "a push allocates " + perPush + " bytes");
+    }
+
+    @Test
+    public void pushDecodesTheBody() {
+        ProactiveRatelimiter limiter = devLimiter();
+        HttpClient.ResponseReceiver<?> request = client.get().uri("http://localhost:" + server.port() + "/match/" + ValRegion.NORTH_AMERICA);
+
+        MatchData data = limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, request, Mapping.decode(MatchData.class))
+                .block(Duration.ofSeconds(10));
+
+        assertNotNull(data);
+        assertEquals(Mapping.map(MatchData.class).apply(new String(match, StandardCharsets.UTF_8)), data);
+    }
+
+    /**
+     * Not a real benchmark, JMH isn't set up for this project. Shows how long a mixed region workload takes when some
+     * requests get 429s, which used to pause every region at once
+     */
+    @Test
+    public void mixedRegionsWithInjected429s() {
+        ProactiveRatelimiter limiter = new ProactiveRatelimiter(
+                RateLimits.RIOT4J_DEV_MASTER,
+                RateLimits.RIOT4J_DEV_SECONDARY,
+                List.of(RateLimits.VAL_MATCH)
+        );
+        hits.clear();
+        int perRegion = RateLimits.RIOT4J_DEV_MASTER.getCount();
+
+        long start = System.nanoTime();
+        long count = Flux.fromIterable(regions)
+                .flatMap(region -> Flux.range(0, perRegion)
+                        .flatMap(i -> limiter.push(RateLimits.VAL_MATCH, region, flaky(region))))
+                .count()
+                .block(Duration.ofMinutes(1));
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        log.info(regions.size() + " regions x " + perRegion + " requests, every tenth call a 429, took " + elapsed.toMillis() + "ms");
+        assertEquals((long) regions.size() * perRegion, count);
+        //each region sits out a few one second pauses, one after the other they would add up to well over this
+        assertTrue(elapsed.toMillis() < 6000, "429s in one region held up the others");
+    }
+
+    @Test
+    public void pacingSpreadsTickets() {
+        Dispenser dispenser = new Dispenser(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, RateWindow.parse("20:1"));
+        int burst = 5;
+        dispenser.pace(burst);
+
+        List<Long> taken = new ArrayList<>();
+        while(taken.size() < 20) {
+            Ticket ticket = dispenser.tryAcquire();
+            if(ticket == null) continue;
+            taken.add(System.nanoTime());
+            ticket.release();
+        }
+
+        long total = (taken.get(taken.size() - 1) - taken.get(0)) / 1_000_000;
+        long widest = 0;
+        for(int i = 1; i < taken.size(); i++) {
+            widest = Math.max(widest, (taken.get(i) - taken.get(i - 1)) / 1_000_000);
+        }
+        log.info("20 paced tickets took " + total + "ms, widest gap " + widest + "ms");
+        //a burst of 5, then one every 50ms instead of all 20 at once
+        assertTrue(total >= 600, "tickets weren't spread out");
+        assertTrue(widest < 100, "tickets came in bursts");
+        assertTrue((taken.get(burst - 1) - taken.get(0)) / 1_000_000 < 20, "the burst wasn't allowed");
+    }
+
+    @Test
+    public void onlyPacedTicketsGiveBackTheirSpot() {
+        Dispenser dispenser = new Dispenser(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, RateWindow.parse("20:1"));
+        List<Ticket> unpaced = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            unpaced.add(dispenser.tryAcquire());
+        }
+
+        //tickets taken before pacing started never held a spot, so cancelling them mustn't make a burst
+        dispenser.pace(1);
+        unpaced.forEach(Ticket::cancel);
+        int burst = 0;
+        while(dispenser.tryAcquire() != null) burst++;
+        assertEquals(1, burst);
+
+        //a paced ticket cancelled before its spot came up gives the spot back
+        Dispenser fresh = new Dispenser(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, RateWindow.parse("20:1"));
+        fresh.pace(1);
+        Ticket first = fresh.tryAcquire();
+        assertNotNull(first);
+        assertNull(fresh.tryAcquire());
+        first.cancel();
+        assertNotNull(fresh.tryAcquire(), "the spot of a cancelled ticket wasn't given back");
+    }
+
+    @Test
+    public void contendedClaimsKeepTheWholeLimit() throws InterruptedException {
+        //two windows, so a claim often wins one and loses the other and has to be undone
+        Dispenser dispenser = new Dispenser(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, RateWindow.parse("200:10,200:10"));
+        AtomicInteger acquired = new AtomicInteger();
+        long deadline = System.currentTimeMillis() + 5000; //well within the first window
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while(acquired.get() < 200 && System.currentTimeMillis() < deadline) {
+                    Ticket ticket = dispenser.tryAcquire();
+                    if(ticket == null) continue;
+                    acquired.incrementAndGet();
+                    ticket.release();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for(Thread thread: threads) {
+            thread.join();
+        }
+
+        assertEquals(200, acquired.get(), "undone claims used up slots");
+        assertNull(dispenser.tryAcquire());
+    }
+
+    @Test
+    public void cancelledTicketsGoBack() {
+        Dispenser dispenser = new Dispenser(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, RateWindow.parse("20:60"));
+        List<Ticket> tickets = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            tickets.add(dispenser.tryAcquire());
+        }
+        assertNull(dispenser.tryAcquire(), "window should be exhausted");
+
+        //the newest half is cancelled unsent, in any order
+        List<Ticket> cancelled = new ArrayList<>(tickets.subList(10, 20));
+        Collections.shuffle(cancelled);
+        cancelled.forEach(Ticket::cancel);
+        for(int i = 0; i < 10; i++) {
+            assertNotNull(dispenser.tryAcquire(), "cancelled slot " + i + " wasn't given back");
+        }
+        assertNull(dispenser.tryAcquire(), "gave back more than was cancelled");
+    }
+
+    @Test
+    public void cancelledFanOutLeavesTheQueue() {
+        ProactiveRatelimiter limiter = devLimiter();
+        int window = RateLimits.RIOT4J_DEV_MASTER.getCount();
+
+        //only the first few answers are wanted, everything still queued behind the app limit is cancelled
+        Flux.range(0, window * 5)
+                .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)))
+                .take(5)
+                .blockLast(Duration.ofMinutes(1));
+        Mono.delay(Duration.ofMillis(100)).block(); //flatMap may finish cancelling on the thread that's draining it
+        int queued = limiter.getQueued(RateLimits.RIOT4J_DEV_MASTER, ValRegion.NORTH_AMERICA);
+
+        long start = System.nanoTime();
+        long count = Flux.range(0, window)
+                .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)))
+                .count()
+                .block(Duration.ofMinutes(1));
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        log.info(queued + " left queued after take(5), next window took " + elapsed.toMillis() + "ms");
+        assertEquals(0, queued);
+        assertEquals(window, count);
+        //the cancelled requests used to take a ticket each once they reached the front, four more seconds of them
+        assertTrue(elapsed.toMillis() < 2500, "cancelled requests still used up the limit");
+    }
+
+    @Test
+    public void countHeadersReserveUnknownCalls() {
+        ProactiveRatelimiter limiter = devLimiter();
+        int window = RateLimits.RIOT4J_DEV_MASTER.getCount();
+
+        limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, client.get().uri("http://localhost:" + server.port() + "/counted/" + ValRegion.NORTH_AMERICA))
+                .block(Duration.ofMinutes(1));
+        int drift = limiter.getDrift(RateLimits.RIOT4J_DEV_MASTER, ValRegion.NORTH_AMERICA);
+
+        //only what riot hasn't counted is left of the first second
+        long start = System.nanoTime();
+        Flux.range(0, window - 15)
+                .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)))
+                .blockLast(Duration.ofMinutes(1));
+        Duration free = Duration.ofNanos(System.nanoTime() - start);
+        limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)).block(Duration.ofMinutes(1));
+        Duration full = Duration.ofNanos(System.nanoTime() - start);
+
+        log.info("drift " + drift + ", " + (window - 15) + " calls took " + free.toMillis() + "ms, one more " + full.toMillis() + "ms");
+        assertEquals(14, drift);
+        assertEquals(28, limiter.getReserved(RateLimits.RIOT4J_DEV_MASTER, ValRegion.NORTH_AMERICA)); //in both windows
+        assertTrue(free.toMillis() < 500, "the calls riot didn't count weren't free");
+        assertTrue(full.toMillis() > 500, "the reserved calls were handed out again");
+    }
+
+    @Test
+    public void capacityAndEstimates() {
+        ProactiveRatelimiter limiter = devLimiter();
+        int window = RateLimits.RIOT4J_DEV_MASTER.getCount();
+
+        Capacity fresh = limiter.getCapacity(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA).orElseThrow();
+        assertEquals(window, fresh.getAvailable());
+        assertEquals(0, fresh.getQueued());
+        assertTrue(limiter.estimate(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, window).orElseThrow().toMillis() < 100);
+        //one window now and the next one a second later
+        Duration two = limiter.estimate(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, window * 2).orElseThrow();
+        assertTrue(two.toMillis() > 900 && two.toMillis() < 1100, "two windows estimated at " + two);
+
+        List<Disposable> subscriptions = new ArrayList<>();
+        for(int i = 0; i < window * 2; i++) {
+            subscriptions.add(limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)).subscribe());
+        }
+        Capacity used = limiter.getCapacity(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA).orElseThrow();
+        Duration next = limiter.estimate(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, 1).orElseThrow();
+        subscriptions.forEach(Disposable::dispose);
+
+        log.info(used + ", one more would wait " + next.toMillis() + "ms");
+        assertEquals(0, used.getAvailable());
+        assertEquals(window, used.getQueued());
+        assertTrue(used.getNextFree().isAfter(Instant.now()));
+        //behind everything queued, so two windows away
+        assertTrue(next.toMillis() > 1500, "the queue wasn't counted");
+
+        //the old limiter can't plan, and a pool with one of those can't either
+        TokenPool pool = new TokenPool(List.of("a", "b"), token -> token.equals("a") ? devLimiter() : new BucketManager());
+        assertTrue(pool.getCapacity(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA).isEmpty());
+        assertTrue(pool.estimate(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, 1).isEmpty());
+    }
+
+    @Test
+    public void hopelessDeadlineFailsFast() {
+        ProactiveRatelimiter limiter = devLimiter();
+        int secondary = RateLimits.RIOT4J_DEV_SECONDARY.getCount();
+
+        //plenty of time on a fresh limiter
+        limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA))
+                .contextWrite(Deadline.in(Duration.ofSeconds(10)).context())
+                .block(Duration.ofMinutes(1));
+
+        //use up the two minute window, the next ticket is two minutes away
+        Flux.range(1, secondary - 1)
+                .flatMap(i -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA)))
+                .blockLast(Duration.ofMinutes(1));
+
+        long start = System.nanoTime();
+        assertThrows(DeadlineExceededException.class, () -> limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA))
+                .contextWrite(Deadline.in(Duration.ofSeconds(5)).context())
+                .block(Duration.ofMinutes(1)));
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        log.info("Hopeless deadline failed after " + elapsed.toMillis() + "ms");
+        assertTrue(elapsed.toMillis() < 1000, "waited on a deadline that could never be met");
+        assertEquals(secondary, limiter.getLatency(Priority.NORMAL).count()); //the rejected request never got queued
+    }
+
+    @Test
+    public void identicalRequestsShareOneCall() {
+        ProactiveRatelimiter limiter = devLimiter();
+        RequestCoalescer coalescer = new RequestCoalescer();
+        int subscribers = 50;
+
+        long count = Flux.range(0, subscribers)
+                .flatMap(i -> coalescer.coalesce("status/na", () ->
+                        limiter.push(RateLimits.VAL_STATUS, ValRegion.NORTH_AMERICA, stub(ValRegion.NORTH_AMERICA))))
+                .count()
+                .block(Duration.ofMinutes(1));
+
+        log.info(subscribers + " subscribers made " + coalescer.getCalls() + " calls, saved " + coalescer.getSaved() + " tickets");
+        assertEquals(subscribers, count);
+        assertEquals(subscribers, coalescer.getCalls() + coalescer.getSaved());
+        assertTrue(coalescer.getSaved() > 0, "no subscriber joined an in flight call");
+        assertEquals(coalescer.getCalls(), limiter.getLatency(Priority.NORMAL).count());
+    }
+
+    @Test
+    public void coalescingKeepsLanesApart() {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        AtomicInteger sent = new AtomicInteger();
+        Mono<Integer> call = coalescer.coalesce("status/na", () -> Mono.delay(Duration.ofMillis(100)).map(tick -> sent.incrementAndGet()));
+
+        Flux.merge(
+                call,
+                call,
+                call.contextWrite(Priority.INTERACTIVE.context()),
+                call.contextWrite(Tenant.of("leaderboards").context()),
+                call.contextWrite(Deadline.in(Duration.ofSeconds(5)).context()),
+                call.contextWrite(Deadline.in(Duration.ofSeconds(5)).context())
+        ).blockLast(Duration.ofSeconds(5));
+
+        //the two plain ones share, every other one waits in its own lane or has its own deadline
+        assertEquals(5, sent.get());
+        assertEquals(5, coalescer.getCalls());
+        assertEquals(1, coalescer.getSaved());
+    }
+
+    @Test
+    public void snapshotSurvivesRestart() throws Exception {
+        Path file = Files.createTempDirectory("riot4j-snapshot").resolve("key.limits");
+        List<RateWindow> windows = RateWindow.parse("20:60");
+
+        WindowStore before = WindowStore.snapshot(file, Duration.ofMinutes(1));
+        Dispenser dispenser = new Dispenser(RateLimits.VAL_MATCH, ValRegion.NORTH_AMERICA, windows, before);
+        for(int i = 0; i < 14; i++) {
+            dispenser.tryAcquire().release();
+        }
+        assertNotNull(dispenser.tryAcquire()); //still in flight when we stop
+        //saves from several threads at once each write their own temp file and take turns moving it
+        Flux.range(0, 8)
+                .parallel()
+                .runOn(Schedulers.boundedElastic())
+                .doOnNext(i -> before.save())
+                .sequential()
+                .blockLast(Duration.ofSeconds(10));
+        before.dispose();
+        assertTrue(before.isDisposed());
+        try(Stream<Path> files = Files.list(file.getParent())) {
+            assertEquals(List.of(file), files.collect(Collectors.toList()));
+        }
+
+        //a new process opening the same file only gets what riot hasn't counted yet
+        Dispenser restarted = new Dispenser(RateLimits.VAL_MATCH, ValRegion.NORTH_AMERICA, windows, WindowStore.snapshot(file, Duration.ofMinutes(1)));
+        int acquired = 0;
+        while(restarted.tryAcquire() != null) acquired++;
+        assertEquals(5, acquired);
+    }
+
+    @Test
+    public void snapshotsOfOneKeyShareTheFile() throws Exception {
+        Path file = Files.createTempDirectory("riot4j-snapshot").resolve("key.limits");
+        List<RateWindow> windows = RateWindow.parse("20:60");
+
+        //two clients on the same key, both spending riot's budget
+        WindowStore first = WindowStore.snapshot(file, Duration.ofMinutes(1));
+        WindowStore second = WindowStore.snapshot(file, Duration.ofMinutes(1));
+        Dispenser one = new Dispenser(RateLimits.VAL_MATCH, ValRegion.NORTH_AMERICA, windows, first);
+        Dispenser two = new Dispenser(RateLimits.VAL_MATCH, ValRegion.NORTH_AMERICA, windows, second);
+        for(int i = 0; i < 6; i++) one.tryAcquire().release();
+        for(int i = 0; i < 4; i++) two.tryAcquire().release();
+
+        first.dispose();
+        assertFalse(Files.exists(file)); //the second one still saves for both
+        second.dispose();
+        assertTrue(Files.exists(file));
+
+        Dispenser restarted = new Dispenser(RateLimits.VAL_MATCH, ValRegion.NORTH_AMERICA, windows, WindowStore.snapshot(file, Duration.ofMinutes(1)));
+        int acquired = 0;
+        while(restarted.tryAcquire() != null) acquired++;
+        assertEquals(10, acquired);
+    }
+
+    @Test
+    public void disposingAPersistedLimiterSavesIt() throws Exception {
+        Path directory = Files.createTempDirectory("riot4j-persisted");
+        ProactiveRatelimiter limiter = RatePresets.devPersisted(directory, "RGAPI-test");
+        limiter.getCapacity(RateLimits.VAL_MATCH, ValRegion.NORTH_AMERICA); //opens the windows
+        limiter.dispose();
+
+        assertTrue(limiter.isDisposed());
+        try(Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.filter(path -> path.toString().endsWith(".limits")).count());
+        }
+    }
+
+    /**
+     * One process of {@link #sharedWindowAcrossProcesses()}. Takes tickets from a shared window until it runs dry, then
+     * prints how many it got and how long they took
+     */
+    public static class SharedWorker {
+        public static void main(String[] args) {
+            Dispenser dispenser = new Dispenser(
+                    RateLimits.ACTIVE_SHARDS,
+                    ValRegion.NORTH_AMERICA,
+                    List.of(RateWindow.of(RateLimits.ACTIVE_SHARDS)),
+                    WindowStore.mapped(Paths.get(args[0]))
+            );
+
+            long acquired = 0;
+            long start = System.nanoTime();
+            while(true) {
+                Ticket ticket = dispenser.tryAcquire();
+                if(ticket != null) {
+                    ticket.release();
+                    acquired++;
+                }
+                else if(dispenser.acquireAt().isAfter(Instant.now())) break; //window is used up
+            }
+            System.out.println(acquired + " " + (System.nanoTime() - start)); //the parent reads this back
+        }
+    }
+
+    @Test
+    public void sharedWindowAcrossProcesses() throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        int count = RateLimits.ACTIVE_SHARDS.getCount();
+
+        for(int processes: new int[]{1, 4, 16}) {
+            Path directory = Files.createTempDirectory("riot4j-shared");
+            List<Process> running = new ArrayList<>();
+            for(int i = 0; i < processes; i++) {
+                running.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), SharedWorker.class.getName(), directory.toString())
+                        .redirectErrorStream(true)
+                        .start());
+            }
+
+            long acquired = 0;
+            long nanos = 0;
+            for(Process process: running) {
+                String last = null;
+                try(BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                    String line;
+                    while((line = reader.readLine()) != null) last = line; //the result is the last thing printed
+                }
+                process.waitFor();
+                String[] result = last.split(" ");
+                acquired += Long.parseLong(result[0]);
+                nanos += Long.parseLong(result[1]);
+            }
+
+            log.info(processes + " processes: " + acquired + " tickets, " + nanos / Math.max(acquired, 1) + "ns per acquire + release");
+            //no matter how many processes race for the window, it hands out exactly its count
+            assertEquals(count, acquired);
+        }
+    }
+}